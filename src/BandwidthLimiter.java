@@ -0,0 +1,198 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * Upload and download caps for the session and for each peer. Every peer has its own pair of token
+ * buckets in front of the global ones. Peer threads wait for their turn in arrival order, and
+ * PeerEngine stops selecting a throttled socket until its tokens are back, so active peers share
+ * the global rate one message or read at a time without extra threads.
+ *
+ */
+public class BandwidthLimiter {
+
+	/**
+	 * Session upload cap in KiB/s, -Drubt.limit.up. 0 for no limit.
+	 */
+	public static final int up_limit = Integer.getInteger("rubt.limit.up", 0);
+	/**
+	 * Session download cap in KiB/s, -Drubt.limit.down. 0 for no limit.
+	 */
+	public static final int down_limit = Integer.getInteger("rubt.limit.down", 0);
+	/**
+	 * Upload cap per peer in KiB/s, -Drubt.limit.peer.up. 0 for no limit.
+	 */
+	public static final int peer_up_limit = Integer.getInteger("rubt.limit.peer.up", 0);
+	/**
+	 * Download cap per peer in KiB/s, -Drubt.limit.peer.down. 0 for no limit.
+	 */
+	public static final int peer_down_limit = Integer.getInteger("rubt.limit.peer.down", 0);
+
+	private RUBTClient client;
+	private TokenBucket upload = new TokenBucket(up_limit * 1024L);
+	private TokenBucket download = new TokenBucket(down_limit * 1024L);
+	private volatile long peer_upload = peer_up_limit * 1024L;
+	private volatile long peer_download = peer_down_limit * 1024L;
+
+	// fair locks hand the global buckets to waiting peer threads in arrival order
+	private ReentrantLock upload_turn = new ReentrantLock(true);
+	private ReentrantLock download_turn = new ReentrantLock(true);
+
+	public BandwidthLimiter(RUBTClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * @return new bucket for a peer's uploads at the current per-peer rate
+	 */
+	public TokenBucket peerUploadBucket() {
+		return new TokenBucket(peer_upload);
+	}
+
+	/**
+	 * @return new bucket for a peer's downloads at the current per-peer rate
+	 */
+	public TokenBucket peerDownloadBucket() {
+		return new TokenBucket(peer_download);
+	}
+
+	/**
+	 * @param peer
+	 * @return nanoseconds before peer may send again, 0 if it may send now
+	 */
+	public long uploadDelay(Peer peer) {
+		return Math.max(upload.delay(), peer.getUploadBucket().delay());
+	}
+
+	/**
+	 * @param peer
+	 * @return nanoseconds before peer may read again, 0 if it may read now
+	 */
+	public long downloadDelay(Peer peer) {
+		return Math.max(download.delay(), peer.getDownloadBucket().delay());
+	}
+
+	/**
+	 * @param peer
+	 * @return most bytes to write to peer in one go, so a capped upload goes out in small steps
+	 * instead of a large burst and a long wait, 0 for no limit
+	 */
+	public long uploadBurst(Peer peer) {
+		long global = upload.getBurst();
+		long own = peer.getUploadBucket().getBurst();
+		if (global == 0) return own;
+		if (own == 0) return global;
+		return Math.min(global, own);
+	}
+
+	public void uploaded(Peer peer, long bytes) {
+		upload.consume(bytes);
+		peer.getUploadBucket().consume(bytes);
+	}
+
+	public void downloaded(Peer peer, long bytes) {
+		download.consume(bytes);
+		peer.getDownloadBucket().consume(bytes);
+	}
+
+	/**
+	 * Blocks a peer thread until bytes may be sent to peer, then takes the tokens
+	 * @param peer
+	 * @param bytes
+	 * @throws InterruptedException
+	 */
+	public void acquireUpload(Peer peer, long bytes) throws InterruptedException {
+		acquire(peer.getUploadBucket(), upload, upload_turn, bytes);
+	}
+
+	/**
+	 * Blocks a peer thread until bytes read from peer are paid for
+	 * @param peer
+	 * @param bytes
+	 * @throws InterruptedException
+	 */
+	public void acquireDownload(Peer peer, long bytes) throws InterruptedException {
+		acquire(peer.getDownloadBucket(), download, download_turn, bytes);
+	}
+
+	private static void acquire(TokenBucket own, TokenBucket global, ReentrantLock turn, long bytes) throws InterruptedException {
+		// wait out the peer's own cap first so a slow peer does not hold up the queue
+		sleep(own);
+		turn.lockInterruptibly();
+		try {
+			sleep(global);
+			global.consume(bytes);
+		} finally {
+			turn.unlock();
+		}
+		own.consume(bytes);
+	}
+
+	private static void sleep(TokenBucket bucket) throws InterruptedException {
+		long delay;
+		while ((delay = bucket.delay()) > 0) {
+			TimeUnit.NANOSECONDS.sleep(delay);
+		}
+	}
+
+	/**
+	 * @param kib_per_second session upload cap, 0 for no limit
+	 */
+	public void setUploadLimit(int kib_per_second) {
+		upload.setRate(kib_per_second * 1024L);
+	}
+
+	/**
+	 * @param kib_per_second session download cap, 0 for no limit
+	 */
+	public void setDownloadLimit(int kib_per_second) {
+		download.setRate(kib_per_second * 1024L);
+	}
+
+	/**
+	 * Changes the upload cap of every peer, connected or not
+	 * @param kib_per_second 0 for no limit
+	 */
+	public void setPeerUploadLimit(int kib_per_second) {
+		peer_upload = kib_per_second * 1024L;
+		for (Peer peer : client.peerList) {
+			if (peer.getUploadBucket() != null) peer.getUploadBucket().setRate(peer_upload);
+		}
+	}
+
+	/**
+	 * Changes the download cap of every peer, connected or not
+	 * @param kib_per_second 0 for no limit
+	 */
+	public void setPeerDownloadLimit(int kib_per_second) {
+		peer_download = kib_per_second * 1024L;
+		for (Peer peer : client.peerList) {
+			if (peer.getDownloadBucket() != null) peer.getDownloadBucket().setRate(peer_download);
+		}
+	}
+
+	public int getUploadLimit() {
+		return (int) (upload.getRate() / 1024);
+	}
+
+	public int getDownloadLimit() {
+		return (int) (download.getRate() / 1024);
+	}
+
+	public int getPeerUploadLimit() {
+		return (int) (peer_upload / 1024);
+	}
+
+	public int getPeerDownloadLimit() {
+		return (int) (peer_download / 1024);
+	}
+
+	public String stats() {
+		return String.format("limits up: %s, down: %s, per peer up: %s, down: %s",
+				limit(getUploadLimit()), limit(getDownloadLimit()), limit(getPeerUploadLimit()), limit(getPeerDownloadLimit()));
+	}
+
+	private static String limit(int kib_per_second) {
+		return kib_per_second <= 0 ? "none" : kib_per_second + " KiB/s";
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ *
+ * Fixed size set of piece indexes packed 64 to a long. Used for our own pieces, every peer's pieces
+ * and BITFIELD messages. Word level operations answer questions like "which pieces does this peer
+ * have that we need" 64 pieces at a time.
+ *
+ */
+public class Bitfield {
+
+	private long[] words;
+	private int size;
+
+	/**
+	 * Constructor takes number of pieces
+	 * @param size
+	 */
+	public Bitfield(int size) {
+		this.size = size;
+		this.words = new long[(size + 63) >>> 6];
+	}
+
+	/**
+	 * Parse a wire bitfield, high bit of the first byte is piece 0. Spare bits past size are ignored.
+	 * @param data
+	 * @param size
+	 * @return
+	 */
+	public static Bitfield fromBytes(byte[] data, int size) {
+		Bitfield bits = new Bitfield(size);
+		int length = Math.min(data.length, (size + 7) >>> 3);
+		for (int i = 0; i < length; i++) {
+			int b = data[i] & 0xff;
+			if (b == 0) continue;
+			for (int j = 0; j < 8; j++) {
+				if ((b & (0x80 >>> j)) != 0) {
+					int index = (i << 3) + j;
+					if (index < size) bits.set(index);
+				}
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * @return wire form, high bit of the first byte is piece 0
+	 */
+	public byte[] toBytes() {
+		byte[] data = new byte[(size + 7) >>> 3];
+		for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+			data[i >>> 3] |= 0x80 >>> (i & 7);
+		}
+		return data;
+	}
+
+	public Bitfield copy() {
+		Bitfield bits = new Bitfield(size);
+		System.arraycopy(words, 0, bits.words, 0, words.length);
+		return bits;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean get(int index) {
+		return (words[index >>> 6] & (1L << index)) != 0;
+	}
+
+	public void set(int index) {
+		words[index >>> 6] |= 1L << index;
+	}
+
+	public void clear(int index) {
+		words[index >>> 6] &= ~(1L << index);
+	}
+
+	public void clear() {
+		for (int i = 0; i < words.length; i++) {
+			words[i] = 0;
+		}
+	}
+
+	public int cardinality() {
+		int count = 0;
+		for (long word : words) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+
+	/**
+	 * @return true if every index is set
+	 */
+	public boolean isFull() {
+		return cardinality() == size;
+	}
+
+	/**
+	 * @param from
+	 * @return first set index at or after from, -1 if none
+	 */
+	public int nextSetBit(int from) {
+		if (from >= size) return -1;
+		int w = from >>> 6;
+		long word = words[w] & (-1L << from);
+		while (true) {
+			if (word != 0) {
+				int index = (w << 6) + Long.numberOfTrailingZeros(word);
+				return index < size ? index : -1;
+			}
+			if (++w == words.length) return -1;
+			word = words[w];
+		}
+	}
+
+	/**
+	 * First index set here and clear in other, e.g. a piece the peer has and we do not
+	 * @param other bitfield of the same size
+	 * @param from
+	 * @return index or -1
+	 */
+	public int nextAndNot(Bitfield other, int from) {
+		if (from >= size) return -1;
+		int w = from >>> 6;
+		long word = words[w] & ~other.words[w] & (-1L << from);
+		while (true) {
+			if (word != 0) {
+				int index = (w << 6) + Long.numberOfTrailingZeros(word);
+				return index < size ? index : -1;
+			}
+			if (++w == words.length) return -1;
+			word = words[w] & ~other.words[w];
+		}
+	}
+
+	/**
+	 * @param other
+	 * @return true if some index is set here and clear in other
+	 */
+	public boolean hasAndNot(Bitfield other) {
+		return nextAndNot(other, 0) != -1;
+	}
+}
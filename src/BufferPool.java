@@ -0,0 +1,103 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Bounded pool of fixed size buffers. Buffers are borrowed with acquire and handed back with
+ * release once their contents have been consumed. Keeps allocation counters so the allocation
+ * rate can be compared with pooling turned off (a pool of capacity 0).
+ *
+ */
+public class BufferPool {
+
+	private BlockingQueue<ByteBuffer> free;
+	private int buffer_size;
+	private boolean direct;
+	private long created;
+
+	private AtomicLong allocations = new AtomicLong();
+	private AtomicLong allocated_bytes = new AtomicLong();
+	private AtomicLong acquired = new AtomicLong();
+	private AtomicLong reused = new AtomicLong();
+
+	/**
+	 * @param buffer_size size of every pooled buffer
+	 * @param capacity max number of idle buffers kept, 0 disables pooling
+	 * @param direct allocate direct buffers outside the heap
+	 */
+	public BufferPool(int buffer_size, int capacity, boolean direct) {
+		this.buffer_size = buffer_size;
+		this.direct = direct;
+		this.free = capacity > 0 ? new ArrayBlockingQueue<ByteBuffer>(capacity) : null;
+		this.created = System.nanoTime();
+	}
+
+	/**
+	 * Borrow a buffer with position 0 and limit size. Sizes larger than the pooled size get a
+	 * one off buffer that release will drop.
+	 * @param size
+	 * @return buffer
+	 */
+	public ByteBuffer acquire(int size) {
+		acquired.incrementAndGet();
+		ByteBuffer buffer = null;
+		if (free != null && size <= buffer_size) {
+			buffer = free.poll();
+		}
+		if (buffer == null) {
+			int capacity = Math.max(size, buffer_size);
+			buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+			allocations.incrementAndGet();
+			allocated_bytes.addAndGet(capacity);
+		} else {
+			reused.incrementAndGet();
+		}
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer taken from acquire. Dropped when the pool is full.
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		if (free == null || buffer == null || buffer.capacity() != buffer_size) return;
+		free.offer(buffer);
+	}
+
+	public int getBufferSize() {
+		return buffer_size;
+	}
+
+	public long getAllocations() {
+		return allocations.get();
+	}
+
+	public long getAllocatedBytes() {
+		return allocated_bytes.get();
+	}
+
+	/**
+	 * @return bytes allocated per second since the pool was created
+	 */
+	public double getAllocationRate() {
+		double seconds = (System.nanoTime() - created) / 1e9;
+		return seconds > 0 ? allocated_bytes.get() / seconds : 0;
+	}
+
+	/**
+	 * @return fraction of acquires served from the pool
+	 */
+	public double getHitRate() {
+		long total = acquired.get();
+		return total == 0 ? 0 : (double) reused.get() / total;
+	}
+
+	public String stats() {
+		return String.format("buffers acquired: %d, allocated: %d (%d KiB, %.1f KiB/s), reused: %.1f%%",
+				acquired.get(), allocations.get(), allocated_bytes.get() / 1024, getAllocationRate() / 1024, getHitRate() * 100);
+	}
+}
@@ -0,0 +1,108 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ *
+ * Tit-for-tat choking. Every rechoke interval the interested peers are ranked by how fast they sent
+ * us data over the last RateMeter.window seconds, or how fast we sent them data once we are
+ * seeding, and the best ones are unchoked. One more slot goes to a peer picked at random and kept
+ * for three rounds, so new peers get a chance to show what they can do.
+ *
+ */
+public class Choker {
+
+	/**
+	 * Peers unchoked by rate, -Drubt.unchoke.slots
+	 */
+	public static final int slots = Integer.getInteger("rubt.unchoke.slots", 3);
+	/**
+	 * Seconds between rechokes, -Drubt.rechoke.interval
+	 */
+	public static final int rechoke_interval = Integer.getInteger("rubt.rechoke.interval", 10);
+	// rechokes per optimistic unchoke rotation, 30 seconds with the default interval
+	private static final int OPTIMISTIC_ROUNDS = 3;
+
+	private RUBTClient client;
+	private Peer optimistic;
+	private int round;
+	private Random random = new Random();
+
+	// rates snapshot of the last rechoke, so the ranking does not change while sorting
+	private Map<Peer, Double> rates = new HashMap<Peer, Double>();
+
+	public Choker(RUBTClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Recompute which peers are unchoked and send CHOKE and UNCHOKE where that changed
+	 */
+	public synchronized void rechoke() {
+
+		final boolean seeding = client.outfile.isFinished();
+		List<Peer> candidates = new ArrayList<Peer>();
+		rates.clear();
+		for (Peer peer : client.peerList) {
+			if (!peer.isConnected()) continue;
+			rates.put(peer, seeding ? peer.getUploadRate() : peer.getDownloadRate());
+			if (peer.isPeerInterested()) candidates.add(peer);
+		}
+
+		// fastest first, snubbed peers last while we are still downloading
+		Collections.sort(candidates, new Comparator<Peer>() {
+			public int compare(Peer a, Peer b) {
+				if (!seeding && a.isSnubbed() != b.isSnubbed()) return a.isSnubbed() ? 1 : -1;
+				return Double.compare(rates.get(b), rates.get(a));
+			}
+		});
+
+		Set<Peer> unchoke = new HashSet<Peer>(candidates.subList(0, Math.min(slots, candidates.size())));
+
+		if (round++ % OPTIMISTIC_ROUNDS == 0 || optimistic == null || !candidates.contains(optimistic)) {
+			List<Peer> choked = new ArrayList<Peer>();
+			for (Peer peer : candidates) {
+				if (!unchoke.contains(peer)) choked.add(peer);
+			}
+			optimistic = choked.isEmpty() ? null : choked.get(random.nextInt(choked.size()));
+		}
+		if (optimistic != null) unchoke.add(optimistic);
+
+		for (Peer peer : client.peerList) {
+			if (!peer.isConnected()) continue;
+			if (unchoke.contains(peer)) {
+				peer.unchoke();
+			} else {
+				peer.choke();
+			}
+		}
+	}
+
+	/**
+	 * A peer became interested, unchoke it right away if a slot is free instead of waiting for
+	 * the next rechoke
+	 * @param peer
+	 */
+	public synchronized void interested(Peer peer) {
+		int unchoked = 0;
+		for (Peer other : client.peerList) {
+			if (other.isConnected() && !other.isChoked()) unchoked++;
+		}
+		if (unchoked < slots + 1) peer.unchoke();
+	}
+
+	/**
+	 * @param peer
+	 * @return bytes per second used to rank peer in the last rechoke
+	 */
+	public synchronized double getRate(Peer peer) {
+		Double rate = rates.get(peer);
+		return rate == null ? 0 : rate;
+	}
+}
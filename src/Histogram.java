@@ -0,0 +1,78 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Latency histogram with fixed millisecond buckets, cumulative like Prometheus expects. Recording is
+ * lock free so the hasher and writer threads can share one.
+ *
+ */
+public class Histogram {
+
+	/**
+	 * Upper bounds of the buckets in milliseconds, the last bucket is unbounded
+	 */
+	public static final double[] bounds = { 0.5, 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+	private LongAdder[] buckets = new LongAdder[bounds.length + 1];
+	private LongAdder count = new LongAdder();
+	private LongAdder sum = new LongAdder();
+	private AtomicLong max = new AtomicLong();
+
+	public Histogram() {
+		for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+	}
+
+	/**
+	 * @param nanos one measured latency
+	 */
+	public void observe(long nanos) {
+		double millis = nanos / 1e6;
+		int i = 0;
+		while (i < bounds.length && millis > bounds[i]) i++;
+		buckets[i].increment();
+		count.increment();
+		sum.add(nanos);
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos));
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return total of all latencies in seconds
+	 */
+	public double getSum() {
+		return sum.sum() / 1e9;
+	}
+
+	/**
+	 * @return mean latency in milliseconds
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : sum.sum() / 1e6 / n;
+	}
+
+	/**
+	 * @return longest latency in milliseconds
+	 */
+	public double getMax() {
+		return max.get() / 1e6;
+	}
+
+	/**
+	 * @return observations at or below each bound, and the total count last
+	 */
+	public long[] cumulative() {
+		long[] counts = new long[buckets.length];
+		long total = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			total += buckets[i].sum();
+			counts[i] = total;
+		}
+		return counts;
+	}
+}
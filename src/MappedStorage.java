@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *
+ * Storage over a memory mapped file. The file is mapped in fixed size windows as they are first used,
+ * so files larger than one mapping work. Pieces are copied straight into the mapping and uploads are
+ * slices of it, with no read or write system calls.
+ *
+ */
+public class MappedStorage implements Storage {
+
+	/**
+	 * Bytes per mapping, -Drubt.storage.window
+	 */
+	public static final int window_size = Integer.getInteger("rubt.storage.window", 64 * 1024 * 1024);
+
+	private FileChannel channel;
+	private long size;
+	private MappedByteBuffer[] windows;
+
+	/**
+	 * @param filename
+	 * @param size length of the complete file
+	 * @throws IOException
+	 */
+	public MappedStorage(String filename, long size) throws IOException {
+		this.channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.size = size;
+		this.windows = new MappedByteBuffer[(int) ((size + window_size - 1) / window_size)];
+	}
+
+	public void write(long position, ByteBuffer data) throws IOException {
+		data = data.duplicate();
+		int end = data.limit();
+		while (data.hasRemaining()) {
+			ByteBuffer target = view(position);
+			int n = Math.min(data.remaining(), target.remaining());
+			data.limit(data.position() + n);
+			target.put(data);
+			data.limit(end);
+			position += n;
+		}
+	}
+
+	public void read(long position, ByteBuffer dst) throws IOException {
+		while (dst.hasRemaining()) {
+			ByteBuffer source = view(position);
+			int n = Math.min(dst.remaining(), source.remaining());
+			source.limit(source.position() + n);
+			dst.put(source);
+			position += n;
+		}
+	}
+
+	public ByteBuffer slice(long position, int length) throws IOException {
+		ByteBuffer source = view(position);
+		if (length <= source.remaining()) {
+			source.limit(source.position() + length);
+			return source.slice();
+		}
+		// block crosses into the next window
+		ByteBuffer copy = ByteBuffer.allocate(length);
+		read(position, copy);
+		copy.flip();
+		return copy;
+	}
+
+	public synchronized void flush() throws IOException {
+		for (MappedByteBuffer window : windows) {
+			if (window != null) window.force();
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		flush();
+		channel.close();
+	}
+
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * @param position
+	 * @return independent buffer over the window holding position, positioned there
+	 * @throws IOException
+	 */
+	private ByteBuffer view(long position) throws IOException {
+		if (position < 0 || position >= size) throw new IOException("position " + position + " outside file of " + size);
+		int index = (int) (position / window_size);
+		ByteBuffer view = window(index).duplicate();
+		view.position((int) (position - (long) index * window_size));
+		return view;
+	}
+
+	private synchronized MappedByteBuffer window(int index) throws IOException {
+		if (windows[index] == null) {
+			long start = (long) index * window_size;
+			windows[index] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(window_size, size - start));
+		}
+		return windows[index];
+	}
+}
@@ -6,7 +6,10 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Encapsulate messages exchanged between peers. 
@@ -28,6 +31,7 @@ public class Message {
 	public static final byte BITFIELD_ID = 5;
 	public static final byte REQUEST_ID = 6;
 	public static final byte PIECE_ID = 7;
+	public static final byte CANCEL_ID = 8;
 
 	//non-payload messages
 	public static final Message KEEP_ALIVE = new Message(KEEP_ALIVE_ID, 0);
@@ -49,6 +53,19 @@ public class Message {
 
 	private boolean isNull;
 
+	/**
+	 * Pool of 16 KiB buffers that incoming PIECE blocks are read into. -Drubt.pool.blocks=0 turns
+	 * pooling off, -Drubt.pool.direct=true keeps the blocks off heap
+	 */
+	public static final BufferPool block_pool = new BufferPool(Peer.max_length,
+			Integer.getInteger("rubt.pool.blocks", 256), Boolean.getBoolean("rubt.pool.direct"));
+
+	private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[Peer.max_length];
+		}
+	};
+
 
 
 	/**
@@ -103,6 +120,51 @@ public class Message {
 		return handshake;
 	}
 
+	/**
+	 * @param bitlen number of pieces
+	 * @return longest message a well-behaved peer sends, a BITFIELD or a PIECE with one block
+	 */
+	public static int maxLength(int bitlen) {
+		return Math.max((bitlen + 7) / 8 + 1, Peer.max_length + 9);
+	}
+
+	/**
+	 * Rejects a length prefix outside 0..maxLength, or one that does not match the message id. Only
+	 * PIECE has a variable length, every other id has exactly the payload it declares so a decoder
+	 * never leaves part of a message in the stream.
+	 * @param length
+	 * @param id message id, or KEEP_ALIVE_ID if it has not been read yet
+	 * @param bitlen
+	 * @throws IOException
+	 */
+	public static void checkLength(int length, int id, int bitlen) throws IOException {
+		int exact;
+		switch (id) {
+		case CHOKE_ID:
+		case UNCHOKE_ID:
+		case INTERESTED_ID:
+		case UNINTERESTED_ID:
+			exact = 1;
+			break;
+		case HAVE_ID:
+			exact = 5;
+			break;
+		case BITFIELD_ID:
+			exact = (bitlen + 7) / 8 + 1;
+			break;
+		case REQUEST_ID:
+		case CANCEL_ID:
+			exact = 13;
+			break;
+		default:
+			exact = -1;
+		}
+		int min = id == PIECE_ID ? 9 : 0;
+		if (length < min || length > maxLength(bitlen) || (exact >= 0 && length != exact)) {
+			throw new IOException("Bad message length " + length + " for id " + id);
+		}
+	}
+
 	/**
 	 * Given Inputstream associated with peer socket, decode messages sent into Message object according to message ID
 	 * @param in
@@ -120,10 +182,12 @@ public class Message {
 		
 		System.out.println("Message length in decode: " + length);
 
+		checkLength(length, KEEP_ALIVE_ID, bitlen);
 		if (length == 0) return KEEP_ALIVE;
 
 
 		int id = fromPeer.readByte();
+		checkLength(length, id, bitlen);
 
 
 
@@ -163,14 +227,30 @@ public class Message {
 			int blockLength  = fromPeer.readInt();
 			return new RequestMessage(pieceIndex, begin, blockLength);
 		}
+		case CANCEL_ID: {
+			int pieceIndex = fromPeer.readInt();
+			int begin = fromPeer.readInt();
+			int blockLength  = fromPeer.readInt();
+			return new CancelMessage(pieceIndex, begin, blockLength);
+		}
 		case PIECE_ID: {
 			int pieceIndex = fromPeer.readInt();
 			System.out.println("decoding piece " + pieceIndex);
 			int begin = fromPeer.readInt();
-			byte[] data = new byte[length - 9];
-			fromPeer.readFully(data);
+			ByteBuffer block = block_pool.acquire(length - 9);
+			if (block.hasArray()) {
+				fromPeer.readFully(block.array(), block.arrayOffset(), block.remaining());
+			} else {
+				byte[] chunk = scratch.get();
+				while (block.hasRemaining()) {
+					int n = Math.min(chunk.length, block.remaining());
+					fromPeer.readFully(chunk, 0, n);
+					block.put(chunk, 0, n);
+				}
+				block.flip();
+			}
 
-			return new PieceMessage(pieceIndex, begin, data);
+			return new PieceMessage(pieceIndex, begin, block, block_pool);
 		}
 
 		default: 
@@ -180,6 +260,73 @@ public class Message {
 
 	}
 
+	/**
+	 * Decode one complete message held in a buffer, as read by PeerEngine. PIECE blocks are copied
+	 * straight into a pooled buffer.
+	 * @param in positioned at the length prefix of a complete message, left just past it
+	 * @param bitlen
+	 * @return
+	 * @throws IOException
+	 */
+	public static Message decode(final ByteBuffer in, final int bitlen) throws IOException {
+
+		int length = in.getInt();
+
+		checkLength(length, KEEP_ALIVE_ID, bitlen);
+		if (length == 0) return KEEP_ALIVE;
+
+		int end = in.position() + length;
+		int id = in.get();
+		checkLength(length, id, bitlen);
+
+		try {
+			switch (id) {
+
+			case CHOKE_ID:
+				return CHOKE;
+			case UNCHOKE_ID:
+				return UNCHOKE;
+			case INTERESTED_ID:
+				return INTERESTED;
+			case UNINTERESTED_ID:
+				return UNINTERESTED;
+			case HAVE_ID:
+				return new HaveMessage(in.getInt());
+			case BITFIELD_ID: {
+				byte[] data = new byte[(bitlen + 7) / 8];
+				in.get(data, 0, Math.min(data.length, length - 1));
+				return new BitFieldMessage(data);
+			}
+			case REQUEST_ID: {
+				int pieceIndex = in.getInt();
+				int begin = in.getInt();
+				int blockLength = in.getInt();
+				return new RequestMessage(pieceIndex, begin, blockLength);
+			}
+			case CANCEL_ID: {
+				int pieceIndex = in.getInt();
+				int begin = in.getInt();
+				int blockLength = in.getInt();
+				return new CancelMessage(pieceIndex, begin, blockLength);
+			}
+			case PIECE_ID: {
+				int pieceIndex = in.getInt();
+				int begin = in.getInt();
+				ByteBuffer block = block_pool.acquire(length - 9);
+				ByteBuffer data = in.duplicate();
+				data.limit(end);
+				block.put(data);
+				block.flip();
+				return new PieceMessage(pieceIndex, begin, block, block_pool);
+			}
+			default:
+				throw new IOException("Bad Message ID:" + id);
+			}
+		} finally {
+			in.position(end);
+		}
+	}
+
 	/**
 	 * Given OutputStream associated with peer socket, send client message using proper <length><id><payload> format
 	 * @param out
@@ -189,12 +336,93 @@ public class Message {
 	public static void encode(final OutputStream out, Message message) 
 			throws IOException {
 
-		DataOutputStream toPeer = new DataOutputStream(out);
+		DataOutputStream toPeer = out instanceof DataOutputStream ? (DataOutputStream) out : new DataOutputStream(out);
+
+		write(toPeer, message);
+
+		toPeer.flush();
+	}
+
+	/**
+	 * Send a batch of messages with a single flush. out should be buffered so the whole batch leaves in
+	 * as few segments as possible. Zero-copy piece replies flush what is buffered and then go
+	 * straight to channel when there is one.
+	 * @param out
+	 * @param batch
+	 * @param channel channel under out, or null
+	 * @throws IOException
+	 */
+	public static void encode(final DataOutputStream out, final List<Message> batch, final WritableByteChannel channel)
+			throws IOException {
+
+		for (Message message : batch) {
+			if (message instanceof FilePieceMessage && channel != null) {
+				((FilePieceMessage) message).transfer(out, channel);
+			} else {
+				write(out, message);
+			}
+		}
+
+		out.flush();
+	}
+
+	/**
+	 * Writes message into buffer, which must have 4 + getLength() bytes free. PeerEngine sends PIECE
+	 * blocks with a gathering write and only puts their header here.
+	 * @param out
+	 * @param message
+	 */
+	public static void encode(final ByteBuffer out, Message message) {
+
+		out.putInt(message.getLength());
+
+		if (message.getID() == KEEP_ALIVE_ID) return;
+
+		out.put(message.getID());
+
+		switch (message.getID()) {
+		case HAVE_ID:
+			out.putInt(((HaveMessage) message).getPieceIndex());
+			break;
+		case BITFIELD_ID:
+			out.put(((BitFieldMessage) message).getData());
+			break;
+		case REQUEST_ID: {
+			RequestMessage temp = (RequestMessage) message;
+			out.putInt(temp.getIndex());
+			out.putInt(temp.getOffset());
+			out.putInt(temp.getBlockLength());
+			break;
+		}
+		case CANCEL_ID: {
+			CancelMessage temp = (CancelMessage) message;
+			out.putInt(temp.getIndex());
+			out.putInt(temp.getOffset());
+			out.putInt(temp.getBlockLength());
+			break;
+		}
+		case PIECE_ID: {
+			PieceMessage msg = (PieceMessage) message;
+			out.putInt(msg.getPieceIndex());
+			out.putInt(msg.getOffset());
+			out.put(msg.getBlock());
+			break;
+		}
+		}
+	}
+
+	/**
+	 * Writes <length><id><payload> without flushing
+	 * @param toPeer
+	 * @param message
+	 * @throws IOException
+	 */
+	private static void write(final DataOutputStream toPeer, Message message) throws IOException {
 
 		System.out.println("Sending message " + message.getID());
 
 		if (message.getID() == KEEP_ALIVE_ID) {
-			toPeer.write(message.length);
+			toPeer.writeInt(message.length);
 
 		} else {
 
@@ -230,12 +458,23 @@ public class Message {
 				break;
 			}
 			case PIECE_ID: {
+				if (message instanceof FilePieceMessage) {
+					FilePieceMessage msg = (FilePieceMessage) message;
+					msg.writeHeader(toPeer);
+					toPeer.write(msg.read());
+					break;
+				}
 				PieceMessage msg = (PieceMessage) message;
+				ByteBuffer block = msg.getBlock();
 				toPeer.writeInt(message.getLength());
 				toPeer.writeByte(message.getID());
 				toPeer.writeInt(msg.getPieceIndex());
 				toPeer.writeInt(msg.getOffset());
-				toPeer.write(msg.getPiece());
+				if (block.hasArray()) {
+					toPeer.write(block.array(), block.arrayOffset() + block.position(), block.remaining());
+				} else {
+					toPeer.write(msg.getPiece());
+				}
 				break;
 			}
 			case REQUEST_ID: {
@@ -249,9 +488,18 @@ public class Message {
 
 				break;
 			}
+			case CANCEL_ID: {
+				CancelMessage temp = (CancelMessage) message;
+				toPeer.writeInt(temp.getLength());
+				toPeer.writeByte(temp.getID());
+				toPeer.writeInt(temp.getIndex());
+				toPeer.writeInt(temp.getOffset());
+				toPeer.writeInt(temp.getBlockLength());
+				break;
+			}
 			case BITFIELD_ID: {
 				BitFieldMessage temp = (BitFieldMessage) message;
-				toPeer.write(temp.getLength());
+				toPeer.writeInt(temp.getLength());
 				toPeer.writeByte(temp.getID());
 				toPeer.write(temp.getData(), 0, temp.getData().length);
 			}
@@ -259,8 +507,6 @@ public class Message {
 			}
 
 		}	
-
-		toPeer.flush();
 	}
 
 	/**
@@ -269,23 +515,18 @@ public class Message {
 	 *
 	 */
 	public static class BitFieldMessage extends Message {
-		private boolean[] completed;
 		private byte[] data;
 
-		public boolean[] getCompleted() {
-			return completed;
+		/**
+		 * @param num_pieces
+		 * @return pieces the sender has
+		 */
+		public Bitfield getCompleted(int num_pieces) {
+			return Bitfield.fromBytes(data, num_pieces);
 		}
 
 		public BitFieldMessage(byte[] data) {
 			super(BITFIELD_ID, data.length + 1);
-			ByteArrayBitIterable iter = new ByteArrayBitIterable(data);
-			completed = new boolean[data.length * 8];
-			int i = 0;
-			for (Boolean val : iter) {
-				completed[i] = val;
-				i++;
-			}
-
 			this.data = data;
 		}
 
@@ -321,15 +562,26 @@ public class Message {
 
 		private int pieceIndex;
 		private int offset;
-		private byte[] data;
+		private ByteBuffer block;
+		private BufferPool pool;
 
 
 		public PieceMessage(int pieceIndex, int begin, byte[] data) {
-			super(PIECE_ID, data.length + 9);
+			this(pieceIndex, begin, ByteBuffer.wrap(data), null);
+		}
+
+		/**
+		 * @param pieceIndex
+		 * @param begin
+		 * @param block data between position and limit
+		 * @param pool pool block was borrowed from, or null
+		 */
+		public PieceMessage(int pieceIndex, int begin, ByteBuffer block, BufferPool pool) {
+			super(PIECE_ID, block.remaining() + 9);
 			this.offset = begin;
-			this.data = data;
+			this.block = block;
+			this.pool = pool;
 			this.pieceIndex = pieceIndex;
-
 		}
 		public int getPieceIndex() {
 			return pieceIndex;
@@ -339,16 +591,146 @@ public class Message {
 			return offset;
 		}
 
+		/**
+		 * Puts the 13 byte <length><id><index><begin> header
+		 * @param out
+		 */
+		public void putHeader(ByteBuffer out) {
+			out.putInt(getLength()).put(getID()).putInt(pieceIndex).putInt(offset);
+		}
+
+		/**
+		 * @return view of the block data
+		 */
+		public ByteBuffer getBlock() {
+			return block.duplicate();
+		}
+
+		/**
+		 * @return block data, copied unless it already is an exact array
+		 */
 		public byte[] getPiece() {
+			if (block.hasArray() && block.arrayOffset() == 0 && block.position() == 0 && block.limit() == block.array().length) {
+				return block.array();
+			}
+			byte[] data = new byte[block.remaining()];
+			block.duplicate().get(data);
 			return data;
 		}
 
 		public int getPieceLength() {
-			return data.length;
+			return block.remaining();
+		}
+
+		/**
+		 * Hand the block back to its pool once it has been stored. The message must not be used afterwards.
+		 */
+		public void release() {
+			if (pool != null) {
+				pool.release(block);
+				pool = null;
+			}
 		}
 
 	}
 
+	/**
+	 * PIECE reply that refers to a block of the output file instead of holding it on the heap. Over a
+	 * socket channel the block is handed to the kernel with FileChannel.transferTo
+	 */
+	public static class FilePieceMessage extends Message {
+
+		private int pieceIndex;
+		private int offset;
+		private FileChannel file;
+		private long position;
+		private int block_length;
+
+		public FilePieceMessage(int pieceIndex, int begin, FileChannel file, long position, int length) {
+			super(PIECE_ID, length + 9);
+			this.pieceIndex = pieceIndex;
+			this.offset = begin;
+			this.file = file;
+			this.position = position;
+			this.block_length = length;
+		}
+
+		public int getPieceIndex() {
+			return pieceIndex;
+		}
+
+		public int getOffset() {
+			return offset;
+		}
+
+		public int getBlockLength() {
+			return block_length;
+		}
+
+		/**
+		 * Writes the 13 byte <length><id><index><begin> header
+		 * @param out
+		 * @throws IOException
+		 */
+		public void writeHeader(DataOutputStream out) throws IOException {
+			out.writeInt(getLength());
+			out.writeByte(getID());
+			out.writeInt(pieceIndex);
+			out.writeInt(offset);
+		}
+
+		/**
+		 * @return 13 byte header as a buffer ready to be written
+		 */
+		public ByteBuffer header() {
+			ByteBuffer header = ByteBuffer.allocate(13);
+			header.putInt(getLength()).put(getID()).putInt(pieceIndex).putInt(offset);
+			header.flip();
+			return header;
+		}
+
+		/**
+		 * Copies the block onto the heap, for outputs that are not channels
+		 * @return block data
+		 * @throws IOException
+		 */
+		public byte[] read() throws IOException {
+			ByteBuffer data = ByteBuffer.allocate(block_length);
+			while (data.hasRemaining()) {
+				if (file.read(data, position + data.position()) == -1) throw new EOFException("Block past end of file");
+			}
+			return data.array();
+		}
+
+		/**
+		 * Transfers part of the block to target starting done bytes in
+		 * @param done bytes already transferred
+		 * @param target
+		 * @return bytes transferred by this call
+		 * @throws IOException
+		 */
+		public long transferTo(long done, WritableByteChannel target) throws IOException {
+			return file.transferTo(position + done, block_length - done, target);
+		}
+
+		/**
+		 * Writes header through out, then the block straight from the file to the blocking channel
+		 * @param out stream over channel
+		 * @param channel
+		 * @throws IOException
+		 */
+		public void transfer(DataOutputStream out, WritableByteChannel channel) throws IOException {
+			writeHeader(out);
+			out.flush();
+			long done = 0;
+			while (done < block_length) {
+				long n = transferTo(done, channel);
+				if (n <= 0 && position + done >= file.size()) throw new EOFException("Block past end of file");
+				done += n;
+			}
+		}
+	}
+
 	/**
 	 * Request Message subclass
 	 * @author Tecle
@@ -358,6 +740,7 @@ public class Message {
 		private int pieceIndex;
 		private int begin;
 		private int block_length;
+		private long requested_at;
 
 
 		public RequestMessage(int pieceIndex, int begin, int length) {
@@ -381,8 +764,49 @@ public class Message {
 			return block_length;
 		}
 
+		/**
+		 * @return System.nanoTime() when the request was handed to the peer
+		 */
+		public long getRequestedAt() {
+			return requested_at;
+		}
+
+		public void setRequestedAt(long requested_at) {
+			this.requested_at = requested_at;
+		}
+
 
 	}
 
-}
+	/**
+	 * Cancel Message subclass, withdraws an earlier request
+	 *
+	 */
+	public static class CancelMessage extends Message {
+		private int pieceIndex;
+		private int begin;
+		private int block_length;
+
+
+		public CancelMessage(int pieceIndex, int begin, int length) {
+			super(CANCEL_ID, 13);
+			this.pieceIndex = pieceIndex;
+			this.begin = begin;
+			this.block_length = length;
+		}
+
+
+		public int getIndex() {
+			return pieceIndex;
+		}
+
+		public int getOffset() {
+			return begin;
+		}
 
+		public int getBlockLength() {
+			return block_length;
+		}
+	}
+
+}
@@ -0,0 +1,438 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ *
+ * Read-only view of the client's counters. The session and every connected peer are registered as
+ * MBeans under the "rubt" domain, and the same numbers are served in the Prometheus text format at
+ * http://127.0.0.1:port/metrics. Values are read when asked for, nothing is sampled in between.
+ *
+ */
+public class Metrics {
+
+	/**
+	 * Port of the local Prometheus endpoint, -Drubt.metrics.port. 0 turns it off.
+	 */
+	public static final int port = Integer.getInteger("rubt.metrics.port", 9181);
+
+	public interface SessionMBean {
+		long getDownloaded();
+		long getUploaded();
+		long getProtocolIn();
+		long getProtocolOut();
+		double getDownloadRate();
+		double getUploadRate();
+		int getConnectedPeers();
+		int getChokedPeers();
+		int getInterestedPeers();
+		int getChokingUsPeers();
+		int getOutboundQueueDepth();
+		int getRequestsInFlight();
+		int getHashQueueDepth();
+		double getHashLatencyMean();
+		double getHashLatencyMax();
+		double getDiskWriteLatencyMean();
+		double getDiskWriteLatencyMax();
+		long getPiecesCompleted();
+		double getPieceCompletionRate();
+		long getHashFailures();
+		int getUploadLimit();
+		void setUploadLimit(int kib_per_second);
+		int getDownloadLimit();
+		void setDownloadLimit(int kib_per_second);
+	}
+
+	public interface PeerMBean {
+		String getAddress();
+		long getDownloaded();
+		long getUploaded();
+		double getDownloadRate();
+		double getUploadRate();
+		boolean isChoked();
+		boolean isChokingUs();
+		boolean isInterested();
+		boolean isSnubbed();
+		int getOutboundQueueDepth();
+		int getRequestsInFlight();
+		int getRequestWindow();
+	}
+
+	private RUBTClient client;
+	private MBeanServer server;
+	private HttpServer http;
+	private Map<Peer, ObjectName> peers = new ConcurrentHashMap<Peer, ObjectName>();
+	// two connections from the same address must not share an MBean name
+	private AtomicInteger peer_ids = new AtomicInteger();
+
+	public Metrics(RUBTClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Registers the session MBean and starts the HTTP endpoint
+	 */
+	public void start() {
+		server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.registerMBean(new StandardMBean(new Session(), SessionMBean.class), new ObjectName("rubt:type=Session"));
+		} catch (JMException e) {
+			System.err.println("JMException registering session metrics " + e.getMessage());
+		}
+		if (port <= 0) return;
+		try {
+			http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			http.createContext("/metrics", new HttpHandler() {
+				public void handle(HttpExchange exchange) throws IOException {
+					byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				}
+			});
+			// requests are answered on the server's dispatcher thread
+			http.setExecutor(null);
+			http.start();
+			System.out.println("Metrics at http://127.0.0.1:" + port + "/metrics");
+		} catch (IOException e) {
+			System.err.println("IOException starting metrics endpoint " + e.getMessage());
+		}
+	}
+
+	public void stop() {
+		if (http != null) http.stop(0);
+	}
+
+	/**
+	 * Registers an MBean for a peer that just connected
+	 * @param peer
+	 */
+	public void peerConnected(Peer peer) {
+		if (server == null) return;
+		try {
+			ObjectName name = new ObjectName("rubt:type=Peer,address=" + ObjectName.quote(address(peer)) + ",id=" + peer_ids.incrementAndGet());
+			if (peers.putIfAbsent(peer, name) != null) return;
+			server.registerMBean(new StandardMBean(new PeerView(peer), PeerMBean.class), name);
+		} catch (JMException e) {
+			System.err.println("JMException registering peer metrics " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Drops the MBean of a peer that disconnected
+	 * @param peer
+	 */
+	public void peerClosed(Peer peer) {
+		ObjectName name = peers.remove(peer);
+		if (name == null) return;
+		try {
+			server.unregisterMBean(name);
+		} catch (JMException e) {
+			System.err.println("JMException removing peer metrics " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return every metric in the Prometheus text exposition format
+	 */
+	public String prometheus() {
+		Session session = new Session();
+		StringBuilder out = new StringBuilder();
+
+		family(out, "rubt_downloaded_bytes_total", "counter", "Block bytes received");
+		sample(out, "rubt_downloaded_bytes_total", null, session.getDownloaded());
+		family(out, "rubt_uploaded_bytes_total", "counter", "Block bytes sent");
+		sample(out, "rubt_uploaded_bytes_total", null, session.getUploaded());
+		family(out, "rubt_protocol_received_bytes_total", "counter", "Non-block bytes received");
+		sample(out, "rubt_protocol_received_bytes_total", null, session.getProtocolIn());
+		family(out, "rubt_protocol_sent_bytes_total", "counter", "Non-block bytes sent");
+		sample(out, "rubt_protocol_sent_bytes_total", null, session.getProtocolOut());
+		family(out, "rubt_download_rate_bytes", "gauge", "Block bytes received per second over the rate window");
+		sample(out, "rubt_download_rate_bytes", null, session.getDownloadRate());
+		family(out, "rubt_upload_rate_bytes", "gauge", "Block bytes sent per second over the rate window");
+		sample(out, "rubt_upload_rate_bytes", null, session.getUploadRate());
+
+		family(out, "rubt_peers", "gauge", "Connected peers by state");
+		sample(out, "rubt_peers", "state=\"connected\"", session.getConnectedPeers());
+		sample(out, "rubt_peers", "state=\"choked\"", session.getChokedPeers());
+		sample(out, "rubt_peers", "state=\"interested\"", session.getInterestedPeers());
+		sample(out, "rubt_peers", "state=\"choking_us\"", session.getChokingUsPeers());
+
+		family(out, "rubt_outbound_queue_depth", "gauge", "Messages waiting to be sent");
+		sample(out, "rubt_outbound_queue_depth", null, session.getOutboundQueueDepth());
+		family(out, "rubt_requests_in_flight", "gauge", "Block requests sent and not yet answered");
+		sample(out, "rubt_requests_in_flight", null, session.getRequestsInFlight());
+		family(out, "rubt_hash_queue_depth", "gauge", "Hash tasks waiting for a worker");
+		sample(out, "rubt_hash_queue_depth", null, session.getHashQueueDepth());
+
+		histogram(out, "rubt_hash_latency_seconds", "Time from the last block of a piece arriving to its hash check", client.hasher.getLatency());
+		histogram(out, "rubt_disk_write_seconds", "Time of each write to the disk", client.outfile.getWriteLatency());
+
+		family(out, "rubt_pieces_completed_total", "counter", "Pieces verified and stored");
+		sample(out, "rubt_pieces_completed_total", null, session.getPiecesCompleted());
+		family(out, "rubt_piece_completion_rate", "gauge", "Pieces completed per second over the rate window");
+		sample(out, "rubt_piece_completion_rate", null, session.getPieceCompletionRate());
+		family(out, "rubt_hash_failures_total", "counter", "Pieces that failed the hash check");
+		sample(out, "rubt_hash_failures_total", null, session.getHashFailures());
+
+		family(out, "rubt_peer_downloaded_bytes_total", "counter", "Block bytes received from a peer");
+		for (Peer peer : peers.keySet()) {
+			sample(out, "rubt_peer_downloaded_bytes_total", label(peer), peer.getDownloaded());
+		}
+		family(out, "rubt_peer_uploaded_bytes_total", "counter", "Block bytes sent to a peer");
+		for (Peer peer : peers.keySet()) {
+			sample(out, "rubt_peer_uploaded_bytes_total", label(peer), peer.getUploaded());
+		}
+		family(out, "rubt_peer_download_rate_bytes", "gauge", "Block bytes received from a peer per second");
+		for (Peer peer : peers.keySet()) {
+			sample(out, "rubt_peer_download_rate_bytes", label(peer), peer.getDownloadRate());
+		}
+		family(out, "rubt_peer_upload_rate_bytes", "gauge", "Block bytes sent to a peer per second");
+		for (Peer peer : peers.keySet()) {
+			sample(out, "rubt_peer_upload_rate_bytes", label(peer), peer.getUploadRate());
+		}
+		family(out, "rubt_peer_requests_in_flight", "gauge", "Block requests to a peer not yet answered");
+		for (Peer peer : peers.keySet()) {
+			sample(out, "rubt_peer_requests_in_flight", label(peer), peer.getInFlight());
+		}
+		family(out, "rubt_peer_outbound_queue_depth", "gauge", "Messages waiting to be sent to a peer");
+		for (Peer peer : peers.keySet()) {
+			sample(out, "rubt_peer_outbound_queue_depth", label(peer), peer.getOutboundQueue().size());
+		}
+		return out.toString();
+	}
+
+	private static void family(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder out, String name, String labels, double value) {
+		out.append(name);
+		if (labels != null) out.append('{').append(labels).append('}');
+		out.append(' ');
+		if (value == Math.rint(value) && !Double.isInfinite(value)) {
+			out.append((long) value);
+		} else {
+			out.append(value);
+		}
+		out.append('\n');
+	}
+
+	private static void histogram(StringBuilder out, String name, String help, Histogram histogram) {
+		family(out, name, "histogram", help);
+		long[] counts = histogram.cumulative();
+		for (int i = 0; i < Histogram.bounds.length; i++) {
+			sample(out, name + "_bucket", "le=\"" + BigDecimal.valueOf(Histogram.bounds[i]).movePointLeft(3).stripTrailingZeros().toPlainString() + "\"", counts[i]);
+		}
+		sample(out, name + "_bucket", "le=\"+Inf\"", counts[counts.length - 1]);
+		sample(out, name + "_sum", null, histogram.getSum());
+		sample(out, name + "_count", null, counts[counts.length - 1]);
+	}
+
+	private static String label(Peer peer) {
+		return "peer=\"" + address(peer).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+	}
+
+	private static String address(Peer peer) {
+		return peer.getIP() + ":" + peer.getPort();
+	}
+
+	private class Session implements SessionMBean {
+
+		public long getDownloaded() {
+			return client.download.getTotal();
+		}
+
+		public long getUploaded() {
+			return client.upload.getTotal();
+		}
+
+		public long getProtocolIn() {
+			return client.protocol_in.getTotal();
+		}
+
+		public long getProtocolOut() {
+			return client.protocol_out.getTotal();
+		}
+
+		public double getDownloadRate() {
+			return client.download.getRate();
+		}
+
+		public double getUploadRate() {
+			return client.upload.getRate();
+		}
+
+		public int getConnectedPeers() {
+			int count = 0;
+			for (Peer peer : client.peerList) {
+				if (peer.isConnected()) count++;
+			}
+			return count;
+		}
+
+		public int getChokedPeers() {
+			int count = 0;
+			for (Peer peer : client.peerList) {
+				if (peer.isConnected() && peer.isChoked()) count++;
+			}
+			return count;
+		}
+
+		public int getInterestedPeers() {
+			int count = 0;
+			for (Peer peer : client.peerList) {
+				if (peer.isConnected() && peer.isPeerInterested()) count++;
+			}
+			return count;
+		}
+
+		public int getChokingUsPeers() {
+			int count = 0;
+			for (Peer peer : client.peerList) {
+				if (peer.isConnected() && peer.isChokingUs()) count++;
+			}
+			return count;
+		}
+
+		public int getOutboundQueueDepth() {
+			int depth = 0;
+			for (Peer peer : client.peerList) {
+				depth += peer.getOutboundQueue().size();
+			}
+			return depth;
+		}
+
+		public int getRequestsInFlight() {
+			int count = 0;
+			for (Peer peer : client.peerList) {
+				count += peer.getInFlight();
+			}
+			return count;
+		}
+
+		public int getHashQueueDepth() {
+			return client.hasher.getQueueDepth();
+		}
+
+		public double getHashLatencyMean() {
+			return client.hasher.getLatency().getMean();
+		}
+
+		public double getHashLatencyMax() {
+			return client.hasher.getLatency().getMax();
+		}
+
+		public double getDiskWriteLatencyMean() {
+			return client.outfile.getWriteLatency().getMean();
+		}
+
+		public double getDiskWriteLatencyMax() {
+			return client.outfile.getWriteLatency().getMax();
+		}
+
+		public long getPiecesCompleted() {
+			return client.pieces.getTotal();
+		}
+
+		public double getPieceCompletionRate() {
+			return client.pieces.getRate();
+		}
+
+		public long getHashFailures() {
+			return client.hasher.getFailed();
+		}
+
+		public int getUploadLimit() {
+			return client.limiter.getUploadLimit();
+		}
+
+		public void setUploadLimit(int kib_per_second) {
+			client.limiter.setUploadLimit(kib_per_second);
+		}
+
+		public int getDownloadLimit() {
+			return client.limiter.getDownloadLimit();
+		}
+
+		public void setDownloadLimit(int kib_per_second) {
+			client.limiter.setDownloadLimit(kib_per_second);
+		}
+	}
+
+	private static class PeerView implements PeerMBean {
+
+		private Peer peer;
+
+		public PeerView(Peer peer) {
+			this.peer = peer;
+		}
+
+		public String getAddress() {
+			return address(peer);
+		}
+
+		public long getDownloaded() {
+			return peer.getDownloaded();
+		}
+
+		public long getUploaded() {
+			return peer.getUploaded();
+		}
+
+		public double getDownloadRate() {
+			return peer.getDownloadRate();
+		}
+
+		public double getUploadRate() {
+			return peer.getUploadRate();
+		}
+
+		public boolean isChoked() {
+			return peer.isChoked();
+		}
+
+		public boolean isChokingUs() {
+			return peer.isChokingUs();
+		}
+
+		public boolean isInterested() {
+			return peer.isPeerInterested();
+		}
+
+		public boolean isSnubbed() {
+			return peer.isSnubbed();
+		}
+
+		public int getOutboundQueueDepth() {
+			return peer.getOutboundQueue().size();
+		}
+
+		public int getRequestsInFlight() {
+			return peer.getInFlight();
+		}
+
+		public int getRequestWindow() {
+			return peer.getRequestWindow().size();
+		}
+	}
+}
@@ -1,9 +1,22 @@
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntPredicate;
 
 import GivenTools.TorrentInfo;
 
@@ -16,28 +29,85 @@ import GivenTools.TorrentInfo;
 public class OutFile {
 
 	public int sum = 0;
-	private RandomAccessFile file;
+	private Storage file;
+	private WriteCache cache;
+	private ReadCache read_cache;
+	// time of each write to the disk, timed by the write cache when it is on
+	private Histogram write_latency = new Histogram();
 	private TorrentInfo torrent;
 	public byte[] client_bitfield;
-	public Piece[] pieces;
+	private int num_pieces;
 	private RUBTClient client;
 	private int incomplete;
 	private int file_size;
 	private String filename;
 	private boolean created;
+	private FileChannel upload_channel;
 
-	public Completed[] completed; 
+	//pieces verified and written
+	public Bitfield completed;
+	//pieces started or completed
+	private Bitfield requested;
 
-	//keep track of which pieces are in progress
-	public class Completed {
-		public boolean first;
-		public boolean second;
-		public Completed() {
-			this.first = false;
-			this.second = false;
+	public static final int BLOCK_DUPLICATE = 0;
+	public static final int BLOCK_ADDED = 1;
+	public static final int PIECE_COMPLETE = 2;
+
+	//pieces in progress, oldest first
+	private Map<Integer, Progress> received;
+
+	//which peer holds each block of the pieces in progress
+	private ReservationTable reservations = new ReservationTable();
+
+	//digests of finished pieces, reset and reused for the next piece
+	private ArrayDeque<MessageDigest> digests = new ArrayDeque<MessageDigest>();
+
+	/**
+	 * Buffer of one piece with the blocks stored, and a digest fed with the piece's bytes up to the
+	 * first missing block. Blocks mostly arrive in order, so the piece is nearly hashed by the time
+	 * its last block lands. The digest and hashed are guarded by the Progress itself.
+	 */
+	private static class Progress {
+		private Piece piece;
+		private BitSet blocks;
+		private MessageDigest digest;
+		private int hashed;
+
+		public Progress(Piece piece, int num_blocks, MessageDigest digest) {
+			this.piece = piece;
+			this.blocks = new BitSet(num_blocks);
+			this.digest = digest;
 		}
 	}
 
+	public PiecePicker picker;
+
+	/**
+	 * Heap budget in MiB for pieces being downloaded, -Drubt.pieces.memory. Limits how many pieces
+	 * may be in progress at once.
+	 */
+	public static final int piece_memory = Integer.getInteger("rubt.pieces.memory", 64);
+	/**
+	 * Allocate piece buffers off-heap, -Drubt.pieces.direct
+	 */
+	public static final boolean piece_direct = Boolean.getBoolean("rubt.pieces.direct");
+	private static final int MIN_PIECES = 4;
+
+	private BufferPool piece_pool;
+	private int max_pieces;
+
+	/**
+	 * Storage backend, "raf" or "mmap", -Drubt.storage
+	 */
+	public static final String storage_mode = System.getProperty("rubt.storage", "raf");
+
+	/**
+	 * Threads and bytes mapped at a time for the startup recheck, -Drubt.recheck.threads and
+	 * -Drubt.recheck.region
+	 */
+	public static final int recheck_threads = Integer.getInteger("rubt.recheck.threads", Runtime.getRuntime().availableProcessors());
+	public static final int recheck_region = Integer.getInteger("rubt.recheck.region", 64 * 1024 * 1024);
+
 
 	public OutFile(TorrentInfo torrent) {
 		this.torrent = torrent;
@@ -45,34 +115,18 @@ public class OutFile {
 		incomplete = file_size;
 		filename = torrent.file_name;
 		created = false;
-		pieces = new Piece[torrent.piece_hashes.length];
-
-		int i;
-		for (i = 0; i < pieces.length - 1; i++) {
-			pieces[i] = new Piece(torrent.piece_length);
-		}
-
-		int last_piece_length = torrent.file_length % torrent.piece_length;
-
-		if (last_piece_length == 0) {
-
-			pieces[i] = new Piece(torrent.piece_length);
-		}  else  {
-			pieces[i] = new Piece(last_piece_length);
-		}
+		num_pieces = torrent.piece_hashes.length;
 
-		if (pieces.length % 8 == 0) {
-			client_bitfield = new byte[pieces.length/8];
-		} else {
-			client_bitfield = new byte[pieces.length/8 + 1];
-		}
+		// buffers are taken only for pieces in progress and go back to the pool once written
+		max_pieces = Math.max(MIN_PIECES, (int) (piece_memory * 1024L * 1024 / torrent.piece_length));
+		piece_pool = new BufferPool(torrent.piece_length, max_pieces, piece_direct);
 
-		initializeBitField();
+		this.completed = new Bitfield(num_pieces);
+		this.requested = new Bitfield(num_pieces);
+		client_bitfield = completed.toBytes();
 
-		this.completed = new Completed[torrent.piece_hashes.length];
-		for (i = 0; i < this.completed.length; i ++) {
-			this.completed[i] = new Completed();
-		}
+		this.picker = new PiecePicker(torrent.piece_hashes.length);
+		this.received = new LinkedHashMap<Integer, Progress>();
 
 	}
 
@@ -85,197 +139,554 @@ public class OutFile {
 	}
 
 
+	/**
+	 * Opens the output file with the backend named by -Drubt.storage, "raf" (default) or "mmap",
+	 * behind a write-back cache unless -Drubt.cache.dirty=0
+	 */
 	public void createFile() {
 		try {
-			file = new RandomAccessFile(filename, "rw");
+			if (storage_mode.equals("mmap")) {
+				file = new MappedStorage(filename, file_size);
+			} else {
+				file = new RafStorage(filename);
+			}
+			if (WriteCache.max_dirty > 0) {
+				cache = new WriteCache(file, write_latency);
+				file = cache;
+			}
+			if (ReadCache.max_size > 0) read_cache = new ReadCache(this);
 			created = true;
-		} catch (FileNotFoundException e) {
-			System.out.println("FileNotFoundException initializing RAF " + e.getMessage());
+		} catch (IOException e) {
+			System.out.println("IOException opening " + filename + " " + e.getMessage());
 		} 
 	}
+	/**
+	 * Rechecks an existing output file. The file is mapped in regions and pieces are hashed on a
+	 * ForkJoin pool, so a large file is checked at disk speed rather than the speed of one core.
+	 * @return 1 if every piece is present, -1 otherwise
+	 */
 	public int loadState() {
 
-		byte[] piece = null;
-		int complete = 1;
-		
 		if (!created) createFile();
 
-		for (int i = 0; i < pieces.length; i++) {
-			if (i == (pieces.length - 1)) {
-				piece = new byte[torrent.file_length%torrent.piece_length];
+		long start = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool(recheck_threads);
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			Recheck recheck = new Recheck(channel, Math.min(channel.size(), file_size), start);
+			pool.invoke(recheck.range(0, num_pieces));
+		} catch (IOException e) {
+			System.err.println("IOException rechecking " + filename + " " + e.getMessage());
+		} finally {
+			pool.shutdown();
+		}
+
+		int complete = applyCompleted();
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("recheck: %d of %d pieces valid in %.2f s (%.1f MiB/s)",
+				completed.cardinality(), num_pieces, seconds, (file_size - incomplete) / 1048576.0 / Math.max(seconds, 1e-9)));
+
+		return complete;
+	}
+
+	/**
+	 * Takes completed pieces from fast-resume state instead of rechecking the file
+	 * @param saved
+	 * @return 1 if every piece is present, -1 otherwise
+	 */
+	public int resume(Bitfield saved) {
+
+		if (!created) createFile();
+
+		for (int i = saved.nextSetBit(0); i >= 0; i = saved.nextSetBit(i + 1)) {
+			markComplete(i);
+		}
+		System.out.println("resumed " + saved.cardinality() + " of " + num_pieces + " pieces without recheck");
+		return applyCompleted();
+	}
+
+	private int applyCompleted() {
+
+		int complete = 1;
+		for (int i = 0; i < num_pieces; i++) {
+			if (completed.get(i)) {
+				picker.remove(i);
+				incomplete -= getPieceLength(i);
 			} else {
-				piece = new byte[torrent.piece_length];
+				complete = -1;
 			}
+		}
+		updateBitfield();
+		return complete;
+	}
+
+	/**
+	 * @return copy of the verified pieces
+	 */
+	public synchronized Bitfield getCompleted() {
+		return completed.copy();
+	}
 
-			try {
-				file.seek(torrent.piece_length*i);
-				file.read(piece);
-				if (verifyPiece(piece) == i) {
-					completed[i].first = true;
-					completed[i].second = true;
-					incomplete -= pieces[i].getData().length;
-				} else {
-					complete = - 1;
-					completed[i].first = false;
-					completed[i].second = false;
+	public synchronized boolean isComplete(int piece) {
+		return completed.get(piece);
+	}
+
+	/**
+	 * @return true once every piece is verified and we only upload
+	 */
+	public synchronized boolean isFinished() {
+		return completed.isFull();
+	}
+
+	/**
+	 * Forces written pieces to the storage device
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		if (file != null && file.isOpen()) file.flush();
+	}
+
+	/**
+	 * Shared state of one recheck. range() builds the ForkJoin task for a span of pieces, which
+	 * splits until it covers one mapped region.
+	 */
+	private class Recheck {
+		private FileChannel channel;
+		private long length;
+		private long start;
+		private int pieces_per_region;
+		private AtomicInteger checked = new AtomicInteger();
+		private AtomicLong bytes = new AtomicLong();
+
+		public Recheck(FileChannel channel, long length, long start) {
+			this.channel = channel;
+			this.length = length;
+			this.start = start;
+			this.pieces_per_region = Math.max(1, recheck_region / torrent.piece_length);
+		}
+
+		public RecursiveAction range(final int from, final int to) {
+			return new RecursiveAction() {
+				protected void compute() {
+					if (to - from > pieces_per_region) {
+						int middle = from + (to - from) / 2;
+						invokeAll(range(from, middle), range(middle, to));
+					} else {
+						checkRegion(from, to);
+					}
+				}
+			};
+		}
+
+		private void checkRegion(int from, int to) {
+			long offset = (long) from * torrent.piece_length;
+			long size = Math.min(length, (long) to * torrent.piece_length) - offset;
+			MappedByteBuffer region = null;
+			if (size > 0) {
+				try {
+					region = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+				} catch (IOException e) {
+					System.err.println("IOException mapping " + filename + " " + e.getMessage());
 				}
-			} catch (IOException e) {
-				e.printStackTrace();
 			}
-			
+			for (int i = from; i < to; i++) {
+				int piece_offset = (i - from) * torrent.piece_length;
+				int piece_length = getPieceLength(i);
+				// a piece cut short by the end of the file is missing
+				if (region != null && piece_offset + piece_length <= size) {
+					ByteBuffer data = region.duplicate();
+					data.position(piece_offset);
+					data.limit(piece_offset + piece_length);
+					if (verifyPiece(i, data)) markComplete(i);
+				}
+				progress(piece_length);
+			}
 		}
-		
-		updateBitfield();
-	
-		return complete;
+
+		private void progress(int piece_length) {
+			int done = checked.incrementAndGet();
+			long total = bytes.addAndGet(piece_length);
+			int step = Math.max(1, num_pieces / 10);
+			if (done % step == 0 || done == num_pieces) {
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.out.println(String.format("recheck: %d/%d pieces, %.1f MiB/s",
+						done, num_pieces, total / 1048576.0 / Math.max(seconds, 1e-9)));
+			}
+		}
+	}
+
+	/**
+	 * Reserves the next block to request from a peer. Blocks of pieces already started come first,
+	 * oldest piece first, so several peers can fill one piece in parallel. Otherwise the rarest
+	 * piece the peer has is started, as long as the piece memory budget allows.
+	 * @param peer_have pieces the peer has
+	 * @param owner peer the block will be requested from
+	 * @return request for the block, or null if the peer has nothing left to give
+	 */
+	public Message.RequestMessage reserveBlock(Bitfield peer_have, Peer owner) {
+
+		ReservationTable.Reservation reservation = reservations.reserve(peer_have, owner);
+		if (reservation == null) reservation = startPiece(peer_have, owner);
+		if (reservation == null) return null;
+
+		int offset = reservation.block * Peer.max_length;
+		return new Message.RequestMessage(reservation.piece, offset, Math.min(Peer.max_length, getPieceLength(reservation.piece) - offset));
+	}
+
+	private synchronized ReservationTable.Reservation startPiece(Bitfield peer_have, Peer owner) {
+
+		if (received.size() >= max_pieces) return null;
+		int piece = picker.pick(peer_have, new IntPredicate() {
+			public boolean test(int i) {
+				return !requested.get(i);
+			}
+		});
+		if (piece == -1) return null;
+
+		MessageDigest digest = takeDigest();
+		if (digest == null) return null;
+		Progress progress = new Progress(new Piece(piece_pool.acquire(getPieceLength(piece))), getNumBlocks(piece), digest);
+		received.put(piece, progress);
+		requested.set(piece);
+		reservations.add(piece, getNumBlocks(piece));
+		System.out.println("started piece " + piece + " with " + getNumBlocks(piece) + " blocks");
+
+		return reservations.reserve(piece, owner);
 	}
 
 	/**
-	 * adds first block of piece message to to Piece[] array. 
+	 * Hands a reserved block back, e.g. when the peer chokes us or disconnects before sending it
+	 * @param piece
+	 * @param offset
+	 * @param owner peer the block was reserved for
+	 */
+	public void releaseBlock(int piece, int offset, Peer owner) {
+		reservations.release(piece, offset / Peer.max_length, owner);
+	}
+
+	/**
+	 * Takes back blocks requested longer than timeout ago
+	 * @param timeout_nanos
+	 * @return the expired reservations
+	 */
+	public List<ReservationTable.Reservation> expireReservations(long timeout_nanos) {
+		return reservations.expire(timeout_nanos);
+	}
+
+	/**
+	 * adds block of piece message to the buffer of its piece unless another peer already delivered
+	 * it, and returns the message buffer to its pool.
 	 * @param pMessage
+	 * @return BLOCK_DUPLICATE, BLOCK_ADDED, or PIECE_COMPLETE if it was the last missing block
 	 */
 
-	public void addBlock(Message.PieceMessage pMessage) {
+	public synchronized int addBlock(Message.PieceMessage pMessage) {
+
+		int piece = pMessage.getPieceIndex();
+		int block = pMessage.getOffset() / Peer.max_length;
+		Progress progress = received.get(piece);
+
+		// a piece that is not started was completed or dropped after a failed check
+		if (progress == null || progress.blocks.get(block)) {
+			pMessage.release();
+			return BLOCK_DUPLICATE;
+		}
+
+		progress.piece.addPiece(pMessage.getOffset(), pMessage.getBlock());
+		pMessage.release();
+		progress.blocks.set(block);
+		reservations.stored(piece, block);
 
+		return progress.blocks.cardinality() == getNumBlocks(piece) ? PIECE_COMPLETE : BLOCK_ADDED;
+	}
 
+	/**
+	 * @param piece
+	 * @param offset
+	 * @return true if the block is already stored or its piece is written
+	 */
+	public synchronized boolean hasBlock(int piece, int offset) {
+		Progress progress = received.get(piece);
+		return completed.get(piece) || (progress != null && progress.blocks.get(offset / Peer.max_length));
+	}
 
-		pieces[pMessage.getPieceIndex()].addPiece(pMessage.getOffset(), pMessage.getPiece());
+	/**
+	 * Feeds the digest of piece every stored block contiguous with what is already hashed. Run by
+	 * PieceHasher off the network threads.
+	 * @param piece
+	 */
+	public void hashBlocks(int piece) {
 
-		if (pMessage.getOffset() == 0) {
-			completed[pMessage.getPieceIndex()].first = true;
-		} else {
-			completed[pMessage.getPieceIndex()].second = true;
+		Progress progress;
+		synchronized (this) {
+			progress = received.get(piece);
 		}
+		if (progress == null) return;
 
+		synchronized (progress) {
+			int end;
+			synchronized (this) {
+				int next = progress.blocks.nextClearBit(progress.hashed / Peer.max_length);
+				end = Math.min(next * Peer.max_length, getPieceLength(piece));
+			}
+			if (end > progress.hashed) {
+				progress.digest.update(progress.piece.getData(progress.hashed, end));
+				progress.hashed = end;
+			}
+		}
+	}
 
+	/**
+	 * Drops the blocks of a piece that failed its hash check so it can be started again
+	 * @param piece
+	 */
+	public synchronized void discard(int piece) {
+		clearBlocks(piece);
+		if (!completed.get(piece)) requested.clear(piece);
+	}
 
+	private synchronized void clearBlocks(int piece) {
+		Progress progress = received.remove(piece);
+		reservations.remove(piece);
+		if (progress != null) {
+			giveDigest(progress.digest);
+			piece_pool.release(progress.piece.getBuffer());
+		}
 	}
 
 	/**
-	 * Finds and returns piece index of the first piece peer has and client does not
-	 * @param peer_bitfield
-	 * @return index of first piece client does not have
+	 * @return true once every block we need is requested, the point where end-game starts
 	 */
-	public int needPiece(byte[] peer_bitfield) {
+	public synchronized boolean allReserved() {
+		return requested.isFull() && reservations.allReserved();
+	}
 
-		//int piece_index = 0;
+	private synchronized void markComplete(int piece) {
+		completed.set(piece);
+		requested.set(piece);
+	}
 
-		for (int i = 0; i < torrent.piece_hashes.length; i++) {
-			int m = i%8;
-			int byte_index = (i-m) / 8;
+	public int getNumPieces() {
+		return num_pieces;
+	}
 
-			if ((client_bitfield[byte_index] >> (7-m) & 1) != 1){
-				if ((peer_bitfield[byte_index] >> (7-m) & 1) == 1) {
-					if (!completed[i].first && !completed[i].second) {
-						return i;
-					}
-				}
-			}
+	/**
+	 * @param peer_have
+	 * @return true if peer has a piece we do not
+	 */
+	public synchronized boolean isInteresting(Bitfield peer_have) {
+		return peer_have.hasAndNot(completed);
+	}
+
+	public int getNumBlocks(int index) {
+		return (getPieceLength(index) + Peer.max_length - 1) / Peer.max_length;
+	}
+
+	/**
+	 * @param index
+	 * @return length of piece index, the last piece may be shorter
+	 */
+	public int getPieceLength(int index) {
+		if (index == torrent.piece_hashes.length - 1) {
+			return torrent.file_length - index * torrent.piece_length;
 		}
-		return -1;
+		return torrent.piece_length;
 	}
 
 	/**
-	 * Called when Piece is already written to Piece[]. Writes piece data at piece_index to RAF
+	 * Called once the piece passed checkPiece. Hands piece data at piece_index to the
+	 * write cache, or writes it straight to storage when the cache is off. Only PieceHasher's writer
+	 * thread calls this, so seek and write are not interleaved.
 	 * @param piece_index
-	 * @return true if piece hashes correctly and writes successfully
+	 * @return true if piece writes successfully
 	 */
 	public boolean write(int piece_index) {
 
-		if (verifyPiece(pieces[piece_index].getData()) == -1) {
-			return false;
-		}
 		try {
 			System.out.println("WRITING PIECE " + piece_index);
 			sum+=piece_index;
-			file.seek((long)piece_index*torrent.piece_length);
-			file.write(pieces[piece_index].getData());
-			completed[piece_index].second = true;
-			this.client.setDownloaded(pieces[piece_index].getData().length);
-			
-			incomplete -= pieces[piece_index].getData().length;
+			Progress progress;
+			synchronized (this) {
+				progress = received.get(piece_index);
+			}
+			if (progress == null) return false;
+			long started = System.nanoTime();
+			file.write((long)piece_index*torrent.piece_length, progress.piece.getData());
+			if (cache == null) write_latency.observe(System.nanoTime() - started);
+			markComplete(piece_index);
+			picker.remove(piece_index);
+			clearBlocks(piece_index);
+			incomplete -= getPieceLength(piece_index);
 			updateBitfield();
 
-			if (incomplete <= 0 || piece_index == torrent.file_length% torrent.piece_length) {		// done downloading
-				client.tracker.update(client.uploaded, client.downloaded);
+			if (incomplete <= 0) {		// done downloading
+				client.tracker.update(client.upload.getTotal(), client.download.getTotal(), incomplete);
 				client.tracker.constructURL("completed");
 				System.out.println("completed");
 				
 				client.tracker.sendEvent("completed");
-				close();
+				// storage stays open so the finished file can be seeded
+				try {
+					flush();
+				} catch (IOException e) {
+					System.err.println("IO exception flushing " + filename + " " + e.getMessage());
+				}
 			}
 
 
 			return true;
 		} catch(IOException e) {
-			System.err.println("IO exception writing to RAF " + e.getMessage());
+			System.err.println("IO exception writing piece " + e.getMessage());
 		}
 
 		return false;
 	}
 
 
-	public void close() {
-
-		try {
-			file.close();
-		} catch(IOException e) {
-			System.err.println("IOException closing RAF " + e.getMessage());
+	/**
+	 * Builds the PIECE reply to a REQUEST. Blocks come from the read cache when it is on. Otherwise a
+	 * piece still in the write cache or a mapped file hands out a slice of memory, and anything else
+	 * is sent from the upload channel with transferTo.
+	 * @param index
+	 * @param begin
+	 * @param length
+	 * @return message
+	 * @throws IOException
+	 */
+	public Message getBlock(int index, int begin, int length) throws IOException {
+		if (read_cache != null && isComplete(index)) {
+			byte[] data = read_cache.get(index, length);
+			return new Message.PieceMessage(index, begin, ByteBuffer.wrap(data, begin, length).slice(), null);
 		}
+		long position = (long) index * torrent.piece_length + begin;
+		ByteBuffer slice = file != null ? file.slice(position, length) : null;
+		if (slice != null) return new Message.PieceMessage(index, begin, slice, null);
+		return new Message.FilePieceMessage(index, begin, getUploadChannel(), position, length);
 	}
 
+	/**
+	 * A peer moved on to requesting piece index right after the one before it, load the next pieces
+	 * @param index
+	 */
+	public void readAhead(int index) {
+		if (read_cache != null) read_cache.readAhead(index);
+	}
 
-	public void updateBitfield() {
-
-		for (int i = 0; i < pieces.length; i++) {
-			int m = i%8;
-			int byte_index = (i-(m))/8;
-			if (completed[i].first && completed[i].second) {
-
-				client_bitfield[byte_index] |= (1 << (7-m));
-			} else {
-				client_bitfield[byte_index] &= ~(1 << (7-m));
-			}
+	/**
+	 * @param index
+	 * @return a verified piece read back from storage
+	 * @throws IOException
+	 */
+	public byte[] readPiece(int index) throws IOException {
+		byte[] data = new byte[getPieceLength(index)];
+		file.read((long) index * torrent.piece_length, ByteBuffer.wrap(data));
+		return data;
+	}
 
+	/**
+	 * Read only channel shared by all peers for piece uploads. Positional reads and transferTo
+	 * are safe to use from several threads at once.
+	 * @return channel over the output file
+	 * @throws IOException
+	 */
+	public synchronized FileChannel getUploadChannel() throws IOException {
+		if (upload_channel == null) {
+			upload_channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
 		}
+		return upload_channel;
 	}
 
-	private int verifyPiece(byte[] message) {
+	public void close() {
 
-		MessageDigest md = null;
 		try {
-			md = MessageDigest.getInstance("SHA-1");
-		} catch (NoSuchAlgorithmException e) {
-			System.err.println("No such algorithm " + e.getMessage());
-			return -1;
+			file.close();
+		} catch(IOException e) {
+			System.err.println("IOException closing " + filename + " " + e.getMessage());
 		}
+	}
 
 
-		byte[] piece_hash = md.digest(message);
+	/**
+	 * @return write cache counters, or null when the cache is off
+	 */
+	public String cacheStats() {
+		return cache != null ? cache.stats() : null;
+	}
 
+	/**
+	 * @return path of the file the pieces are stored in
+	 */
+	public String getFilename() {
+		return filename;
+	}
 
-		md.update(piece_hash);
+	public Histogram getWriteLatency() {
+		return write_latency;
+	}
 
-		for (int i = 0; i < torrent.piece_hashes.length; i++) {
-			if (Arrays.equals(piece_hash, torrent.piece_hashes[i].array())) {
-				return i;
-			}
-		}
+	/**
+	 * @return read cache counters, or null when the cache is off
+	 */
+	public String readCacheStats() {
+		return read_cache != null ? read_cache.stats() : null;
+	}
 
+	public synchronized void updateBitfield() {
 
-		return -1;
+		client_bitfield = completed.toBytes();
 	}
 
-	private void initializeBitField() {
+	/**
+	 * Finishes the running digest of a piece whose blocks have all arrived
+	 * @param index
+	 * @return true if the piece matches its hash in the metainfo
+	 */
+	public boolean checkPiece(int index) {
 
+		hashBlocks(index);
 
-		for (int i = 0; i < client_bitfield.length; i++) {
+		Progress progress;
+		synchronized (this) {
+			progress = received.get(index);
+		}
+		if (progress == null) return false;
 
-			for (int j = 1; j <= 8; j++) {
-				client_bitfield[i] &= ~(1  << j); 
-			}
+		synchronized (progress) {
+			if (progress.hashed < getPieceLength(index)) return false;
+			return Arrays.equals(progress.digest.digest(), torrent.piece_hashes[index].array());
 		}
+	}
+
+	/**
+	 * Hashes a whole piece read back from disk
+	 * @param index
+	 * @param data piece bytes between position and limit
+	 * @return true if data matches the hash of piece index
+	 */
+	private boolean verifyPiece(int index, ByteBuffer data) {
+
+		MessageDigest md = takeDigest();
+		if (md == null) return false;
+		md.update(data);
+		boolean valid = Arrays.equals(md.digest(), torrent.piece_hashes[index].array());
+		giveDigest(md);
+		return valid;
+	}
+
+	private synchronized MessageDigest takeDigest() {
+		MessageDigest md = digests.poll();
+		if (md != null) return md;
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			System.err.println("No such algorithm " + e.getMessage());
+			return null;
+		}
+	}
 
+	private synchronized void giveDigest(MessageDigest md) {
+		md.reset();
+		digests.push(md);
 	}
 }
 
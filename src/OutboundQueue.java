@@ -0,0 +1,248 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * Messages waiting to be written to one peer. Writers park in take() until a message may be sent,
+ * that is until one is queued or the remote peer unchokes us. REQUESTs are held while we are choked
+ * and everything else passes them. Tracks queue depth and how long messages wait before being written.
+ *
+ */
+public class OutboundQueue {
+
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition ready = lock.newCondition();
+
+	private ArrayDeque<Queued> messages = new ArrayDeque<Queued>();
+
+	private boolean choked = true;
+	private boolean closed = false;
+	private Runnable listener;
+
+	private int max_depth;
+	private long sent;
+	private long total_wait;
+	private long max_wait;
+
+	private static class Queued {
+		private Message message;
+		private long queued_at;
+
+		public Queued(Message message) {
+			this.message = message;
+			this.queued_at = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Set task to run whenever a message becomes sendable, used by PeerEngine instead of take()
+	 * @param listener
+	 */
+	public void setListener(Runnable listener) {
+		this.listener = listener;
+	}
+
+	public void offer(Message message) {
+		boolean sendable;
+		lock.lock();
+		try {
+			if (closed) return;
+			messages.addLast(new Queued(message));
+			max_depth = Math.max(max_depth, messages.size());
+			sendable = canSend(messages.peekLast());
+			if (sendable) ready.signal();
+		} finally {
+			lock.unlock();
+		}
+		if (sendable && listener != null) listener.run();
+	}
+
+	/**
+	 * Record choke state of the remote peer. Wakes the writer on unchoke.
+	 * @param choked
+	 */
+	public void setChoked(boolean choked) {
+		boolean sendable;
+		lock.lock();
+		try {
+			this.choked = choked;
+			sendable = hasSendable();
+			if (sendable) ready.signal();
+		} finally {
+			lock.unlock();
+		}
+		if (sendable && listener != null) listener.run();
+	}
+
+	/**
+	 * Blocks until a message may be sent
+	 * @return next message, or null once the queue is closed
+	 * @throws InterruptedException
+	 */
+	public Message take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (!closed && !hasSendable()) {
+				ready.await();
+			}
+			return closed ? null : removeSendable();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return next message if it may be sent now, otherwise null
+	 */
+	public Message poll() {
+		lock.lock();
+		try {
+			if (closed) return null;
+			return removeSendable();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops message if it has not been written yet
+	 * @param message
+	 * @return true if it was still queued
+	 */
+	public boolean remove(Message message) {
+		lock.lock();
+		try {
+			Iterator<Queued> queued = messages.iterator();
+			while (queued.hasNext()) {
+				if (queued.next().message == message) {
+					queued.remove();
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops a queued PIECE reply the remote peer cancelled
+	 * @param index
+	 * @param offset
+	 * @return true if it had not been written yet
+	 */
+	public boolean removePiece(int index, int offset) {
+		lock.lock();
+		try {
+			Iterator<Queued> queued = messages.iterator();
+			while (queued.hasNext()) {
+				Message message = queued.next().message;
+				if (message instanceof Message.PieceMessage) {
+					Message.PieceMessage piece = (Message.PieceMessage) message;
+					if (piece.getPieceIndex() != index || piece.getOffset() != offset) continue;
+				} else if (message instanceof Message.FilePieceMessage) {
+					Message.FilePieceMessage piece = (Message.FilePieceMessage) message;
+					if (piece.getPieceIndex() != index || piece.getOffset() != offset) continue;
+				} else {
+					continue;
+				}
+				queued.remove();
+				return true;
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases the writer. Pending messages are dropped.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			messages.clear();
+			ready.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	private boolean canSend(Queued queued) {
+		return !choked || queued.message.getID() != Message.REQUEST_ID;
+	}
+
+	private boolean hasSendable() {
+		for (Queued queued : messages) {
+			if (canSend(queued)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return oldest message that may be sent now, or null
+	 */
+	private Message removeSendable() {
+		Iterator<Queued> it = messages.iterator();
+		Queued queued = null;
+		while (it.hasNext()) {
+			Queued next = it.next();
+			if (canSend(next)) {
+				it.remove();
+				queued = next;
+				break;
+			}
+		}
+		if (queued == null) return null;
+		long wait = System.nanoTime() - queued.queued_at;
+		sent++;
+		total_wait += wait;
+		max_wait = Math.max(max_wait, wait);
+		return queued.message;
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return messages.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getMaxDepth() {
+		return max_depth;
+	}
+
+	/**
+	 * @return mean time messages spent queued, in milliseconds
+	 */
+	public double getAverageWait() {
+		lock.lock();
+		try {
+			return sent == 0 ? 0 : (double) total_wait / sent / TimeUnit.MILLISECONDS.toNanos(1);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return longest time a message spent queued, in milliseconds
+	 */
+	public double getMaxWait() {
+		return (double) max_wait / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	public String stats() {
+		return String.format("queued: %d, max depth: %d, sent: %d, avg wait: %.2f ms, max wait: %.2f ms",
+				size(), max_depth, sent, getAverageWait(), getMaxWait());
+	}
+}
@@ -1,16 +1,22 @@
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.RandomAccessFile;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Formatter;
@@ -30,23 +36,39 @@ public class Peer {
 	private static String PROTOCOL = "BitTorrent protocol";
 
 	private boolean choked;
-	private boolean peer_choked;
-	private boolean connected;
+	private volatile boolean peer_choked;
+	private volatile boolean connected;
+	// close() ran
+	private boolean closed;
 	private boolean interested;
-	private boolean peer_interested;
+	private volatile boolean peer_interested;
 	private boolean first_sent;
 
 
-	private int downloaded;
-	private int uploaded;
-	private int last_downloaded;
-	private int last_uploaded;
+	// block data and everything else on the wire, each direction feeding the session meters
+	private RateMeter download;
+	private RateMeter upload;
+	private RateMeter protocol_in;
+	private RateMeter protocol_out;
+	// this peer's share of BandwidthLimiter
+	private TokenBucket up_bucket;
+	private TokenBucket down_bucket;
+	// piece of the last REQUEST from this peer, for read-ahead
+	private int last_request_piece = -1;
+	// hash tasks this peer queued onto a backlogged PieceHasher, reads wait until they are done
+	private int hash_backlog;
+	private final Object hash_lock = new Object();
 
 	public static final int max_length = 16384;
 
-	private byte[] bitfield;
+	/**
+	 * Block requests kept outstanding per peer before RTT and rate are known, -Drubt.pipeline
+	 */
+	public static final int pipeline_depth = Integer.getInteger("rubt.pipeline", 8);
+
+	private static final int SEND_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_BATCH = 64;
 
-	public Piece[] pieces = null;
 	private Socket peerSocket;
 	private DataInputStream fromPeer;
 	private DataOutputStream	toPeer;
@@ -54,13 +76,20 @@ public class Peer {
 	private Thread producer;
 	private Thread consumer;
 
-	private Queue<Message> jobQueue;
+	private OutboundQueue jobQueue;
 
 	private boolean stopProducing;
 
-	private boolean[] peerCompleted;
+	PeerEngine.Connection connection;
+
+	//pieces the remote peer has announced
+	private Bitfield peer_have;
+
+	private Map<Long, Message.RequestMessage> in_flight;
+	// a request to this peer timed out
+	private volatile boolean snubbed;
+	private RequestWindow window;
 
-	private Object lock = new Object();
 
 	/**
 	 * 
@@ -68,234 +97,449 @@ public class Peer {
 	 *
 	 */
 	private class Producer implements Runnable {
-		private RandomAccessFile f;
 
 		public void run() {
-			try {
-				f = new RandomAccessFile(client.outputFile, "rw");
-			} catch (IOException e) {
-				System.out.println(e.getMessage());
-			}
 			while (true) {
 				Message message;
 				try {
+					awaitHash();
 					System.out.println("Attempting decode");
-					message = Message.decode(fromPeer, peerCompleted.length);
+					message = Message.decode(fromPeer, peer_have.size());
 					System.out.println("leaving decode");
+					// reading stops until the message is paid for, TCP slows the sender down
+					client.limiter.acquireDownload(Peer.this, 4 + message.getLength());
 				} catch (EOFException e) {
-					continue;
+					System.out.println("Peer " + getPeerId() + " closed the connection");
+					close();
+					return;
 				} catch (IOException e) {
 					System.out.println("Caught IO Exception trying to decode message: " + e.getMessage());
-					break;
+					close();
+					return;
+				} catch (InterruptedException e) {
+					System.out.println("INTERRUPTED");
+					close();
+					return;
 				}
-				switch (message.getID()) {
-				case Message.KEEP_ALIVE_ID:
-					System.out.println("Got keepalive message from peer " + getPeerId());
-					break;
-				case Message.CHOKE_ID:
-					System.out.println("Got choke message from peer " + getPeerId());
-					choked = true;
-					break;
-				case Message.UNCHOKE_ID:
-					System.out.println("Got unchoke message from peer " + getPeerId());
-					synchronized (lock) {
-						choked = false;
-						lock.notifyAll();
-					}
-
-					System.out.println("Notified...");
-
-					Message.RequestMessage request = formRequest();
-					System.out.println("Sending request "  + request.getIndex() + "  " + request.getOffset() + "  " + request.getBlockLength());
-					jobQueue.offer(request);
-
-
-					break;
-				case Message.INTERESTED_ID:
-					System.out.println("Got interested message from peer " + getPeerId());
-					interested = true;
-					if (client.getUnchoked() < client.unchoke_limit) {
-						jobQueue.offer(Message.UNCHOKE);
-						peer_choked = false;
-						client.incrementUnchoked();
-						client.want_unchoke.add(Peer.this);
-					}
-					break;
-				case Message.UNINTERESTED_ID:
-					System.out.println("Got uninterested message from peer " + getPeerId());
-					interested = false;
-					jobQueue.offer(Message.CHOKE);
-					client.want_unchoke.remove(Peer.this);
-					client.decrementUnchoked();
-					break;
-				case Message.HAVE_ID:
-					System.out.println("Got have message from peer " + getPeerId());
-					Message.HaveMessage hMessage = (Message.HaveMessage)message;
-					peerCompleted[hMessage.getPieceIndex()] = true;
-					client.have(hMessage.getPieceIndex());
-					break;
-				case Message.BITFIELD_ID:
-					System.out.println("Got bitfield message from peer " + getPeerId());
-
-					if (!firstSent()) {
-						setFirstSent(true);
-					} else {
-						close();
+				try {
+					if (!handleMessage(message)) {
 						return;
 					}
-					Message.BitFieldMessage bMessage = (Message.BitFieldMessage)message;
-					bitfield = bMessage.getData();
-					peerCompleted = bMessage.getCompleted();
-					for (int i = 0; i <peerCompleted.length; i++) {
-						if (peerCompleted[i])
-							client.have(i);
-						else
-							System.out.println("Peer did not complete " + i);
-					}
-
-					if (client.outfile.needPiece(bitfield) != -1) {
-						interested = true;
-						peer_choked = false;
-						jobQueue.offer(Message.INTERESTED);
-					}
-					break;
-				case Message.REQUEST_ID:
-					try {
-						System.out.println("Got request message from peer " + getPeerId());
-						Message.RequestMessage rMessage = (Message.RequestMessage)message;
-						int fileOffset = rMessage.getIndex() * client.tracker.getTorrentInfo().piece_length + rMessage.getOffset();
-						byte[] data = new byte[rMessage.getLength()];
-						f.read(data, fileOffset, data.length);
-						Message piece = new Message.PieceMessage(rMessage.getIndex(), rMessage.getOffset(), data);
-						uploaded+=piece.getLength();
-						setLastUploaded(piece.getLength());
-						jobQueue.offer(piece);
-					} catch (IOException e) {
-						System.out.println(e.getMessage());
-					}
-					break;
-				case Message.PIECE_ID:
-					//	try {
-					System.out.println("Got piece message from peer " + getPeerId());
+				} catch (RuntimeException e) {
+					System.out.println("Dropping peer " + getPeerId() + " after " + e);
+					close();
+					return;
+				}
+			}
+		}
+	}
 
-					Message.PieceMessage pMessage = (Message.PieceMessage)message;
-					System.out.println("this piece " + pMessage.getPieceIndex() + " " + pMessage.getOffset() + " " + pMessage.getPieceLength());
-					client.outfile.completed[pMessage.getPieceIndex()].first = true;
-					downloaded+=pMessage.getLength();
-					setLastDownloaded(pMessage.getLength());
-					requestNextPiece(pMessage);
+	/**
+	 * Acts on a single decoded message from the remote peer. Shared by the Producer thread and the
+	 * selector based PeerEngine.
+	 * @param message
+	 * @return false if the connection was closed and no further messages should be handled
+	 */
+	boolean handleMessage(Message message) {
+		count(message, download, protocol_in);
+		switch (message.getID()) {
+		case Message.KEEP_ALIVE_ID:
+			System.out.println("Got keepalive message from peer " + getPeerId());
+			break;
+		case Message.CHOKE_ID:
+			System.out.println("Got choke message from peer " + getPeerId());
+			choked = true;
+			jobQueue.setChoked(true);
+			cancelInFlight();
+			break;
+		case Message.UNCHOKE_ID:
+			System.out.println("Got unchoke message from peer " + getPeerId());
+			choked = false;
+			jobQueue.setChoked(false);
+			fillPipeline();
+			break;
+		case Message.INTERESTED_ID:
+			System.out.println("Got interested message from peer " + getPeerId());
+			peer_interested = true;
+			client.choker.interested(Peer.this);
+			break;
+		case Message.UNINTERESTED_ID:
+			System.out.println("Got uninterested message from peer " + getPeerId());
+			peer_interested = false;
+			choke();
+			break;
+		case Message.HAVE_ID:
+			System.out.println("Got have message from peer " + getPeerId());
+			Message.HaveMessage hMessage = (Message.HaveMessage)message;
+			int index = hMessage.getPieceIndex();
+			if (index < 0 || index >= peer_have.size()) {
+				System.out.println("HAVE for piece " + index + " out of range, dropping peer " + getPeerId());
+				close();
+				return false;
+			}
+			if (peer_have.get(index)) break;
+			peer_have.set(index);
+			client.have(index);
+			if (!interested && !client.outfile.isComplete(index)) {
+				interested = true;
+				send(Message.INTERESTED);
+			}
+			// fills only whatever room the pipeline has while unchoked
+			if (interested) fillPipeline();
+			break;
+		case Message.BITFIELD_ID:
+			System.out.println("Got bitfield message from peer " + getPeerId());
+
+			if (!firstSent()) {
+				setFirstSent(true);
+			} else {
+				close();
+				return false;
+			}
+			Message.BitFieldMessage bMessage = (Message.BitFieldMessage)message;
+			peer_have = bMessage.getCompleted(peer_have.size());
+			for (int i = peer_have.nextSetBit(0); i >= 0; i = peer_have.nextSetBit(i + 1)) {
+				client.have(i);
+			}
+			System.out.println("Peer has " + peer_have.cardinality() + " of " + peer_have.size() + " pieces");
 
-					break;
-				}
+			if (client.outfile.isInteresting(peer_have)) {
+				interested = true;
+				send(Message.INTERESTED);
 			}
+			break;
+		case Message.REQUEST_ID:
 			try {
-				f.close();
+				System.out.println("Got request message from peer " + getPeerId());
+				Message.RequestMessage rMessage = (Message.RequestMessage)message;
+				// requests that crossed our CHOKE are dropped, the peer asks again once unchoked
+				if (peer_choked) break;
+				if (!validRequest(rMessage)) {
+					System.out.println("Ignoring bad request " + rMessage.getIndex() + " " + rMessage.getOffset() + " " + rMessage.getBlockLength());
+					break;
+				}
+				Message piece = client.outfile.getBlock(rMessage.getIndex(), rMessage.getOffset(), rMessage.getBlockLength());
+				if (rMessage.getIndex() != last_request_piece) {
+					if (rMessage.getIndex() == last_request_piece + 1) client.outfile.readAhead(rMessage.getIndex());
+					last_request_piece = rMessage.getIndex();
+				}
+				send(piece);
 			} catch (IOException e) {
 				System.out.println(e.getMessage());
 			}
+			break;
+		case Message.PIECE_ID:
+			System.out.println("Got piece message from peer " + getPeerId());
+
+			Message.PieceMessage pMessage = (Message.PieceMessage)message;
+			System.out.println("this piece " + pMessage.getPieceIndex() + " " + pMessage.getOffset() + " " + pMessage.getPieceLength());
+			Message.RequestMessage answered = in_flight.remove(blockKey(pMessage.getPieceIndex(), pMessage.getOffset()));
+			if (answered == null) {
+				System.out.println("Dropping unrequested block");
+				pMessage.release();
+				break;
+			}
+			if (pMessage.getPieceLength() != answered.getBlockLength()) {
+				// a wrong size would overflow the piece buffer or leave a gap in it
+				System.out.println("Dropping block of " + pMessage.getPieceLength() + " bytes, requested " + answered.getBlockLength());
+				pMessage.release();
+				client.outfile.releaseBlock(answered.getIndex(), answered.getOffset(), this);
+				fillPipeline();
+				break;
+			}
+			snubbed = false;
+			long now = System.nanoTime();
+			window.sample(now - answered.getRequestedAt(), pMessage.getPieceLength(), now);
+			blockReceived(pMessage);
+			fillPipeline();
+
+			break;
+		case Message.CANCEL_ID:
+			System.out.println("Got cancel message from peer " + getPeerId());
+			Message.CancelMessage cMessage = (Message.CancelMessage)message;
+			jobQueue.removePiece(cMessage.getIndex(), cMessage.getOffset());
+			break;
 		}
+		return true;
 	}
 
+	/**
+	 * Queue message for the remote peer. The Consumer thread or PeerEngine is woken once it may be sent.
+	 * @param message
+	 */
+	void send(Message message) {
+		jobQueue.offer(message);
+	}
+
+	/**
+	 * Next queued message that may be written now, used by PeerEngine in place of the Consumer thread
+	 * @return message or null if the queue is empty or held back by choke
+	 */
+	Message pollMessage() {
+		Message message = jobQueue.poll();
+		if (message != null) count(message, upload, protocol_out);
+		return message;
+	}
+
+	/**
+	 * Meter the wire bytes of a message, block data as payload and the rest as protocol
+	 * @param message
+	 * @param payload
+	 * @param protocol
+	 */
+	private static void count(Message message, RateMeter payload, RateMeter protocol) {
+		if (message.getID() == Message.PIECE_ID) {
+			payload.add(message.getLength() - 9);
+			protocol.add(13);
+		} else {
+			protocol.add(4 + message.getLength());
+		}
+	}
+
+	public OutboundQueue getOutboundQueue() {
+		return jobQueue;
+	}
+
+	/**
+	 * Writes everything sendable in jobQueue as one batch with a single flush, at most a burst of the
+	 * upload cap at a time
+	 */
 	private class Consumer implements Runnable {
 		public void run() {
+			List<Message> batch = new ArrayList<Message>();
 			while (true) {
-				Message message = jobQueue.poll();
-				if (message != null) { //Queue is not empty
-					if (message.isNull()) {	//Signal to close thread
-						stopProducing = true;
-						break;
-					}
-					synchronized (lock) {
-						while (message.getID() != Message.INTERESTED_ID && message.getID() != Message.BITFIELD_ID && choked) {
-							System.out.println("Started waiting");
-							try { lock.wait(); } catch (InterruptedException e) {
-								System.out.println("INTERRUPTED");
-								break;
-							}
-							System.out.println("Woke up");
-						}
-					}
-					try {
-						System.out.println("Writing message: " + message.getID());
-						Message.encode(toPeer, message);
-					} catch (IOException e) {
-						System.out.println("Caught IO Exception trying to encode message");
-						break;
-					}
+				Message message;
+				try {
+					message = jobQueue.take();
+				} catch (InterruptedException e) {
+					System.out.println("INTERRUPTED");
+					break;
 				}
+				if (message == null) {	//queue closed
+					stopProducing = true;
+					break;
+				}
+				// under a cap a batch stops once it holds a burst worth of bytes
+				long burst = client.limiter.uploadBurst(Peer.this);
+				long bytes = 0;
+				do {
+					batch.add(message);
+					count(message, upload, protocol_out);
+					bytes += 4 + message.getLength();
+				} while (batch.size() < MAX_BATCH && (burst == 0 || bytes < burst) && (message = jobQueue.poll()) != null);
+				try {
+					client.limiter.acquireUpload(Peer.this, bytes);
+				} catch (InterruptedException e) {
+					System.out.println("INTERRUPTED");
+					close();
+					break;
+				}
+				try {
+					System.out.println("Writing " + batch.size() + " messages");
+					Message.encode(toPeer, batch, peerSocket.getChannel());
+				} catch (IOException e) {
+					System.out.println("Caught IO Exception trying to encode message");
+					close();
+					break;
+				}
+				batch.clear();
 			}
 		}
 	}
 
-	private void requestNextPiece(Message.PieceMessage pMessage) {
+	/**
+	 * @param request
+	 * @return true if request asks for a block of at most max_length inside a piece we have
+	 */
+	private boolean validRequest(Message.RequestMessage request) {
+		int index = request.getIndex();
+		if (index < 0 || index >= client.outfile.getNumPieces() || !client.outfile.isComplete(index)) return false;
+		int begin = request.getOffset();
+		int length = request.getBlockLength();
+		return begin >= 0 && length > 0 && length <= max_length && (long) begin + length <= client.outfile.getPieceLength(index);
+	}
+
+	private static long blockKey(int piece, int offset) {
+		return ((long) piece << 32) | offset;
+	}
+
+	/**
+	 * Stores a requested block and passes it to the hashing stage, which verifies and writes the
+	 * piece once its last block is in. During end-game the duplicate requests other peers hold for
+	 * the block are cancelled.
+	 * @param pMessage
+	 */
+	private void blockReceived(Message.PieceMessage pMessage) {
 
-		client.outfile.addBlock(pMessage);
-		int last_block_length = (client.tracker.getTorrentInfo().file_length%client.tracker.getTorrentInfo().piece_length)%max_length;
 		int piece = pMessage.getPieceIndex();
 		int offset = pMessage.getOffset();
+		int result = client.outfile.addBlock(pMessage);
 
+		if (result == OutFile.BLOCK_DUPLICATE) return;
 
-		if (piece == (client.tracker.getTorrentInfo().piece_hashes.length - 1)) {
+		if (client.endgame) client.cancel(piece, offset, this);
 
-			if (last_block_length + offset == client.tracker.getTorrentInfo().file_length % client.tracker.getTorrentInfo().piece_length) {
-				if (client.outfile.write(piece)) {
-					downloaded += client.outfile.pieces[piece].getData().length;
+		if (result != OutFile.PIECE_COMPLETE) {
+			client.hasher.blockAdded(piece, this);
+			return;
+		}
 
+		client.hasher.pieceComplete(piece, this);
+	}
 
-					jobQueue.offer(new Message.HaveMessage(piece));
-					client.completed(piece);
+	/**
+	 * Keeps as many block requests outstanding as the request window allows, reserving blocks from
+	 * OutFile's scheduler. Once every block is reserved, spare room goes to duplicate requests for
+	 * blocks other peers still owe (end-game).
+	 */
+	private synchronized void fillPipeline() {
 
-					return;
-				} else {
-					System.out.println("SHA FAILED"); System.exit(1); 
-				}
-			} else {
-				jobQueue.offer(new Message.RequestMessage(piece, max_length + offset, last_block_length));
+		if (choked) return;
+
+		// a snubbed peer gets one request at a time until it delivers again
+		int depth = snubbed ? 1 : window.size();
+		while (in_flight.size() < depth) {
+			Message.RequestMessage request = client.outfile.reserveBlock(peer_have, this);
+			if (request == null) {
+				if (client.outfile.allReserved()) requestEndgame(depth - in_flight.size());
+				break;
 			}
-		} else if ( max_length + offset == client.tracker.getTorrentInfo().piece_length) {
-			if (client.outfile.write(piece)) {
-				System.out.println("SHA SUCCESS");
-				downloaded += client.outfile.pieces[piece].getData().length;
-				jobQueue.offer(new Message.HaveMessage(piece));
-				client.completed(piece);
+			request.setRequestedAt(System.nanoTime());
+			in_flight.put(blockKey(request.getIndex(), request.getOffset()), request);
+			send(request);
+		}
 
-				Message.RequestMessage m = formRequest();
-				jobQueue.offer(m);
-				System.out.println("just sent request for piece " + m.getIndex());
+		if (in_flight.isEmpty()) {
+			interested = false;
+		}
+	}
 
-			} else {
-				System.out.println("SHA FAILED");
+	/**
+	 * Requests blocks this peer has that are outstanding at other peers
+	 * @param room max number of requests to add
+	 */
+	private void requestEndgame(int room) {
+
+		if (!client.endgame) {
+			System.out.println("Entering end-game");
+			client.endgame = true;
+		}
+		for (Peer peer : client.peerList) {
+			if (peer == this) continue;
+			for (Message.RequestMessage owed : peer.in_flight.values()) {
+				if (room == 0) return;
+				long key = blockKey(owed.getIndex(), owed.getOffset());
+				if (!peer_have.get(owed.getIndex()) || in_flight.containsKey(key)) continue;
+				if (client.outfile.hasBlock(owed.getIndex(), owed.getOffset())) continue;
+				Message.RequestMessage request = new Message.RequestMessage(owed.getIndex(), owed.getOffset(), owed.getBlockLength());
+				request.setRequestedAt(System.nanoTime());
+				in_flight.put(key, request);
+				send(request);
+				room--;
 			}
-		} else {
+		}
+	}
+
+	/**
+	 * The reservation for a block requested from this peer timed out and the block went back to
+	 * the scheduler. Cancels the request and marks the peer snubbed.
+	 * @param piece
+	 * @param offset
+	 */
+	void expired(int piece, int offset) {
+
+		System.out.println("request for " + piece + ":" + offset + " to peer " + getPeerId() + " timed out");
+		snubbed = true;
+		cancelRequest(piece, offset);
+	}
+
+	/**
+	 * PieceHasher queued a task for this peer while its queue was full
+	 */
+	void hashQueued() {
+		synchronized (hash_lock) {
+			hash_backlog++;
+		}
+	}
 
-			jobQueue.offer(new Message.RequestMessage(piece, max_length + offset, max_length));
+	/**
+	 * A task counted by hashQueued finished, reading goes on once none is left
+	 */
+	void hashDone() {
+		synchronized (hash_lock) {
+			if (--hash_backlog > 0) return;
+			hash_lock.notifyAll();
 		}
+		if (connection != null) connection.resumeReads();
+	}
 
+	/**
+	 * @return true while reads from this peer wait for the hasher
+	 */
+	boolean isHashBacklogged() {
+		synchronized (hash_lock) {
+			return hash_backlog > 0;
+		}
 	}
-	
-	private Message.RequestMessage formRequest() {
 
-		int piece;
-		int offset = 0;
+	private void awaitHash() throws InterruptedException {
+		synchronized (hash_lock) {
+			while (hash_backlog > 0 && connected) hash_lock.wait();
+		}
+	}
 
-		if ((piece = client.outfile.needPiece(bitfield)) == -1) { 
+	/**
+	 * Top up the request pipeline, e.g. after expired blocks became free
+	 */
+	void requestMore() {
+		if (connected && client != null && peer_have != null) fillPipeline();
+	}
 
-			interested = false;
-			return null;
+	public boolean isSnubbed() {
+		return snubbed;
+	}
+
+	/**
+	 * Withdraw our request for a block another peer delivered first. Sends CANCEL unless the request
+	 * was still queued.
+	 * @param piece
+	 * @param offset
+	 */
+	void cancelRequest(int piece, int offset) {
+
+		Message.RequestMessage request = in_flight.remove(blockKey(piece, offset));
+		if (request == null) return;
+		if (!jobQueue.remove(request)) {
+			send(new Message.CancelMessage(piece, offset, request.getBlockLength()));
 		}
+	}
+
+	/**
+	 * A choke discards our outstanding requests. Unsent ones are pulled from the queue and all of
+	 * the blocks go back to the scheduler for any peer to request.
+	 */
+	private synchronized void cancelInFlight() {
 
-		if (client.outfile.pieces[piece].getOffset() != 0) {
-			offset += max_length;
+		for (Message.RequestMessage request : in_flight.values()) {
+			jobQueue.remove(request);
 		}
+		releaseBlocks();
+	}
 
-		System.out.println("forming request for piece " + piece);
-		return (new Message.RequestMessage(piece, offset, max_length));
+	/**
+	 * Give up blocks reserved by this peer that did not arrive, so other peers can fetch them
+	 */
+	private synchronized void releaseBlocks() {
+
+		if (client == null) return;
+		for (Message.RequestMessage request : in_flight.values()) {
+			client.outfile.releaseBlock(request.getIndex(), request.getOffset(), this);
+		}
+		in_flight.clear();
 	}
 	
 	public void startThreads() {
 
-		this.jobQueue = new ConcurrentLinkedQueue<Message>();
-
 		doHandshake();
 
 		if (!checkHandshake(client.tracker.getTorrentInfo().info_hash.array())) {
@@ -306,15 +550,14 @@ public class Peer {
 		}
 
 		//jobQueue.offer(new Message.BitFieldMessage(this.client.outfile.client_bitfield));
-		this.producer = new Thread(this.new Producer());
-		this.consumer = new Thread(this.new Consumer());
-		this.producer.start();
-		this.consumer.start();
+		this.producer = PeerThreads.start(this.new Producer(), "Producer-" + peer_id);
+		this.consumer = PeerThreads.start(this.new Consumer(), "Consumer-" + peer_id);
 
 	}
 
 	public boolean addJob(Message message) {
-		return jobQueue.offer(message);
+		send(message);
+		return true;
 	}
 
 	private boolean firstSent() {
@@ -336,27 +579,21 @@ public class Peer {
 		this.interested = false;
 		this.first_sent = false;
 		this.stopProducing = false;
+		this.jobQueue = new OutboundQueue();
+		this.in_flight = new ConcurrentHashMap<Long, Message.RequestMessage>();
+		this.window = new RequestWindow(pipeline_depth);
 	}
 
 	public void setClient(RUBTClient client) {
 
 		this.client = client;
-		this.peerCompleted = new boolean[client.outfile.completed.length];
-		pieces = new Piece[client.tracker.getTorrentInfo().piece_hashes.length];
-		int i;
-
-		for (i = 0; i < pieces.length - 1; i++) {
-			pieces[i] = new Piece(client.tracker.getTorrentInfo().piece_length);
-		}
-
-		int last_piece_length = client.tracker.getTorrentInfo().file_length % client.tracker.getTorrentInfo().piece_length;
-
-		if (last_piece_length == 0) {
-
-			pieces[i] = new Piece(client.tracker.getTorrentInfo().piece_length);
-		}  else  {
-			pieces[i] = new Piece(last_piece_length);
-		}
+		this.peer_have = new Bitfield(client.outfile.getNumPieces());
+		this.download = new RateMeter(client.download);
+		this.upload = new RateMeter(client.upload);
+		this.protocol_in = new RateMeter(client.protocol_in);
+		this.protocol_out = new RateMeter(client.protocol_out);
+		this.up_bucket = client.limiter.peerUploadBucket();
+		this.down_bucket = client.limiter.peerDownloadBucket();
 
 	}
 
@@ -380,21 +617,91 @@ public class Peer {
 	public void setChoked(boolean b) {
 		peer_choked = b;
 	}
-	
-	public int getLastUploaded() {
-		return last_uploaded;
+
+	/**
+	 * Stop serving this peer, sends CHOKE unless it is already choked
+	 */
+	public synchronized void choke() {
+		if (peer_choked) return;
+		peer_choked = true;
+		send(Message.CHOKE);
+	}
+
+	/**
+	 * Start serving this peer, sends UNCHOKE unless it is already unchoked
+	 */
+	public synchronized void unchoke() {
+		if (!peer_choked) return;
+		peer_choked = false;
+		send(Message.UNCHOKE);
+	}
+
+	/**
+	 * @return true if the peer wants to download from us
+	 */
+	public boolean isPeerInterested() {
+		return peer_interested;
+	}
+
+	/**
+	 * @return bytes of blocks received from this peer
+	 */
+	public long getDownloaded() {
+		return download.getTotal();
+	}
+
+	/**
+	 * @return bytes of blocks sent to this peer
+	 */
+	public long getUploaded() {
+		return upload.getTotal();
 	}
 
-	public void setLastUploaded( int x ) {
-		last_uploaded = x;
+	/**
+	 * @return block bytes per second received from this peer over the last RateMeter.window seconds
+	 */
+	public double getDownloadRate() {
+		return download.getRate();
 	}
 
-	public int getLastDownloaded() {
-		return last_downloaded;
+	/**
+	 * @return block bytes per second sent to this peer over the last RateMeter.window seconds
+	 */
+	public double getUploadRate() {
+		return upload.getRate();
+	}
+
+	/**
+	 * @return meters for received blocks, sent blocks, received protocol and sent protocol bytes
+	 */
+	public RateMeter[] getMeters() {
+		return new RateMeter[] { download, upload, protocol_in, protocol_out };
 	}
 
-	public void setLastDownloaded(int x) {
-		last_downloaded = x;
+	/**
+	 * @return true if the peer is choking us
+	 */
+	public boolean isChokingUs() {
+		return choked;
+	}
+
+	/**
+	 * @return block requests sent to this peer and not yet answered
+	 */
+	public int getInFlight() {
+		return in_flight.size();
+	}
+
+	TokenBucket getUploadBucket() {
+		return up_bucket;
+	}
+
+	TokenBucket getDownloadBucket() {
+		return down_bucket;
+	}
+
+	public RequestWindow getRequestWindow() {
+		return window;
 	}
 
 
@@ -413,16 +720,36 @@ public class Peer {
 	}
 
 
+	/**
+	 * Called by PeerEngine once the non-blocking socket finished connecting
+	 * @param connection
+	 */
+	void attach(final PeerEngine.Connection connection) {
+		this.connection = connection;
+		jobQueue.setListener(new Runnable() {
+			public void run() {
+				connection.requestWrite();
+			}
+		});
+		this.connected = true;
+		client.metrics.peerConnected(this);
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
 	public boolean connectToPeer() {
 
 		try {
 
-			this.peerSocket = new Socket(peer_ip, port);
+			// channel backed socket so piece replies can use FileChannel.transferTo
+			this.peerSocket = SocketChannel.open(new InetSocketAddress(peer_ip, port)).socket();
 			this.peerSocket.setSoTimeout(180*1000);				//3 minute timeout
-			this.toPeer = new DataOutputStream(peerSocket.getOutputStream());
+			this.toPeer = new DataOutputStream(new BufferedOutputStream(peerSocket.getOutputStream(), SEND_BUFFER_SIZE));
 			this.fromPeer = new DataInputStream(peerSocket.getInputStream());
-		} catch(UnknownHostException e) {
-			System.err.println("Unknown Host " + e.getMessage());
+		} catch(UnresolvedAddressException e) {
+			System.err.println("Unknown Host " + peer_ip);
 			return false;
 		} catch(IOException e) {
 			System.err.println("IO Exception " + e.getMessage());
@@ -430,11 +757,21 @@ public class Peer {
 		}
 
 		connected = true;
+		client.metrics.peerConnected(this);
 		return true;
 	}
 
+	/**
+	 * Closes the connection and hands back everything held for this peer. Called from both peer
+	 * threads, PeerEngine and the client; only the first call does anything.
+	 */
 	public void close() {
 
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+		}
+
 		try {
 
 			if (peerSocket != null) peerSocket.close();
@@ -443,18 +780,40 @@ public class Peer {
 
 			if (fromPeer != null) fromPeer.close();
 
-			connected = false;
-
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
+		if (connection != null) connection.close();
+
+		jobQueue.close();
+
+		releaseBlocks();
+
+		if (client != null) {
+			for (int i = peer_have.nextSetBit(0); i >= 0; i = peer_have.nextSetBit(i + 1)) {
+				client.lost(i);
+			}
+			peer_have.clear();
+			client.metrics.peerClosed(this);
+		}
+
+		connected = false;
+		synchronized (hash_lock) {
+			hash_lock.notifyAll();
+		}
+
+		// the blocks this peer held are free for the others
+		if (client != null) client.requestMore();
+
 	}
 
 	private void sendMessage(byte[] message) {
 
 		try {
 			this.toPeer.write(message);
+			this.toPeer.flush();
+			if (protocol_out != null) protocol_out.add(message.length);
 
 		} catch(IOException e) {
 			System.err.println("IO Exception in sendMessage " + e.getMessage());
@@ -0,0 +1,590 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * Selector based alternative to the Producer/Consumer thread pair started by Peer.startThreads().
+ * A fixed number of event loops multiplex every peer socket, decode complete messages and hand
+ * them to Peer.handleMessage. Sockets held back by the BandwidthLimiter drop out of the select
+ * until their tokens are back.
+ *
+ */
+public class PeerEngine {
+
+	private static int HEADER_SIZE = 68;
+	private static int BUFFER_SIZE = Peer.max_length + 13;
+	private static int MAX_BATCH = 64;
+
+	private static final int HANDSHAKE = 0;
+	private static final int ACTIVE = 1;
+
+	private RUBTClient client;
+	private EventLoop[] loops;
+	private AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Constructor takes client and number of event loop threads
+	 * @param client
+	 * @param threads
+	 */
+	public PeerEngine(RUBTClient client, int threads) {
+		this.client = client;
+		this.loops = new EventLoop[threads];
+	}
+
+	/**
+	 * Opens a selector per event loop and starts the loop threads
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop();
+			Thread thread = new Thread(loops[i], "PeerEngine-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Starts a non-blocking connect to peer on the next event loop
+	 * @param peer
+	 */
+	public void connect(final Peer peer) {
+		final EventLoop loop = nextLoop();
+		loop.execute(new Runnable() {
+			public void run() {
+				SocketChannel channel = null;
+				try {
+					channel = SocketChannel.open();
+					channel.configureBlocking(false);
+					Connection connection = new Connection(loop, channel, peer);
+					if (channel.connect(new InetSocketAddress(peer.getIP(), peer.getPort()))) {
+						connection.connected();
+					} else {
+						connection.register(SelectionKey.OP_CONNECT);
+					}
+				} catch (IOException e) {
+					System.err.println("IO Exception connecting to peer " + e.getMessage());
+					connectFailed(channel, peer);
+				} catch (RuntimeException e) {
+					// e.g. UnresolvedAddressException for a bad tracker entry
+					System.err.println("Cannot connect to peer " + peer.getIP() + ": " + e);
+					connectFailed(channel, peer);
+				}
+			}
+		});
+	}
+
+	private void connectFailed(SocketChannel channel, Peer peer) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.err.println("IOException closing channel " + e.getMessage());
+			}
+		}
+		peer.close();
+		client.peerList.remove(peer);
+	}
+
+	/**
+	 * Accepts incoming peers on port. Accepted sockets are spread over all event loops
+	 * @param port
+	 * @throws IOException
+	 */
+	public void listen(int port) throws IOException {
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		server.configureBlocking(false);
+		server.socket().bind(new InetSocketAddress(port));
+		final EventLoop loop = loops[0];
+		loop.execute(new Runnable() {
+			public void run() {
+				try {
+					server.register(loop.selector, SelectionKey.OP_ACCEPT, server);
+				} catch (IOException e) {
+					System.err.println("IO Exception listening for peers " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	private void accept(ServerSocketChannel server) throws IOException {
+		final SocketChannel channel = server.accept();
+		if (channel == null) return;
+		channel.configureBlocking(false);
+		final EventLoop loop = nextLoop();
+		loop.execute(new Runnable() {
+			public void run() {
+				try {
+					new Connection(loop, channel, null).register(SelectionKey.OP_READ);
+				} catch (IOException e) {
+					System.err.println("IO Exception accepting peer " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	private EventLoop nextLoop() {
+		return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+
+	/**
+	 * Single selector thread. Runs tasks handed to it from other threads between selects.
+	 */
+	private class EventLoop implements Runnable {
+
+		private Selector selector;
+		private Queue<Runnable> tasks;
+		// throttled connections, oldest first so they get their turn in order
+		private List<Connection> throttled;
+
+		public EventLoop() throws IOException {
+			this.selector = Selector.open();
+			this.tasks = new ConcurrentLinkedQueue<Runnable>();
+			this.throttled = new ArrayList<Connection>();
+		}
+
+		public void execute(Runnable task) {
+			tasks.offer(task);
+			selector.wakeup();
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					long wait = nextResume();
+					if (wait < 0) {
+						selector.select();
+					} else if (wait == 0) {
+						selector.selectNow();
+					} else {
+						selector.select(wait);
+					}
+				} catch (IOException e) {
+					System.err.println("IO Exception in selector " + e.getMessage());
+					break;
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						System.out.println("Event loop task failed: " + e);
+					}
+				}
+				resumeThrottled();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) continue;
+
+					if (key.attachment() instanceof ServerSocketChannel) {
+						try {
+							accept((ServerSocketChannel) key.attachment());
+						} catch (IOException e) {
+							System.err.println("IO Exception accepting peer " + e.getMessage());
+						}
+						continue;
+					}
+
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isConnectable()) connection.finishConnect();
+						if (key.isValid() && key.isReadable()) connection.read();
+						if (key.isValid() && key.isWritable()) connection.write();
+					} catch (IOException e) {
+						System.out.println("Caught IO Exception on peer connection: " + e.getMessage());
+						connection.close();
+					} catch (RuntimeException e) {
+						// a misbehaving peer must not take the loop and its other sockets down
+						System.out.println("Dropping peer connection after " + e);
+						connection.close();
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return milliseconds until the first throttled connection may go on, -1 if there is none
+		 */
+		private long nextResume() {
+			if (throttled.isEmpty()) return -1;
+			long first = Long.MAX_VALUE;
+			for (Connection connection : throttled) {
+				first = Math.min(first, connection.resumeAt());
+			}
+			return Math.max(0, TimeUnit.NANOSECONDS.toMillis(first - System.nanoTime() + 999999));
+		}
+
+		private void resumeThrottled() {
+			long now = System.nanoTime();
+			Iterator<Connection> it = throttled.iterator();
+			while (it.hasNext()) {
+				if (it.next().resume(now)) it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Per socket state: handshake progress and partial read/write buffers
+	 */
+	class Connection {
+
+		private EventLoop loop;
+		private SocketChannel channel;
+		private SelectionKey key;
+		private Peer peer;
+		private int state;
+		private boolean closed;
+
+		private ByteBuffer in;
+		private ByteBuffer out;
+		private ByteBuffer[] pending;
+		private List<ByteBuffer> parts;
+		private byte[] handshake;
+		private Message.FilePieceMessage region;
+		private long region_done;
+		// System.nanoTime() at which throttled reads or writes go on, 0 when not throttled
+		private long read_resume;
+		private long write_resume;
+		// reads stopped until the peer's backlogged hash tasks are done
+		private boolean hash_paused;
+
+		public Connection(EventLoop loop, SocketChannel channel, Peer peer) {
+			this.loop = loop;
+			this.channel = channel;
+			this.peer = peer;
+			this.state = HANDSHAKE;
+			this.closed = false;
+			this.in = ByteBuffer.allocate(BUFFER_SIZE);
+			this.out = ByteBuffer.allocate(BUFFER_SIZE);
+			this.pending = new ByteBuffer[0];
+			this.parts = new ArrayList<ByteBuffer>();
+		}
+
+		private void register(int ops) throws IOException {
+			key = channel.register(loop.selector, ops, this);
+		}
+
+		private void finishConnect() throws IOException {
+			if (channel.finishConnect()) {
+				connected();
+			}
+		}
+
+		private void connected() throws IOException {
+			if (key == null) register(SelectionKey.OP_READ);
+			peer.attach(this);
+			handshake = handshakeBytes();
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+
+		private byte[] handshakeBytes() {
+			return Message.handshake(client.tracker.getPeerId().getBytes(), client.tracker.getTorrentInfo().info_hash.array());
+		}
+
+		/**
+		 * Checks the remote handshake. Incoming connections only get a Peer once it is valid.
+		 * @param response
+		 * @return true if the info hash matches
+		 */
+		private boolean handshake(byte[] response) throws IOException {
+			if (peer != null) {
+				if (!peer.handshakeCheck(response)) {
+					System.out.println("handshake failed");
+					client.peerList.remove(peer);
+					return false;
+				}
+				return true;
+			}
+
+			byte[] info_hash = Arrays.copyOfRange(response, 28, 48);
+			if (!Arrays.equals(info_hash, client.tracker.getTorrentInfo().info_hash.array())) {
+				System.out.println("handshake failed");
+				return false;
+			}
+			InetSocketAddress address = (InetSocketAddress) channel.getRemoteAddress();
+			peer = new Peer(address.getAddress().toString(), new String(response, 48, 20, "UTF-8"), address.getPort());
+			peer.setClient(client);
+			peer.attach(this);
+			client.peerList.add(peer);
+			handshake = handshakeBytes();
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			return true;
+		}
+
+		private void read() throws IOException {
+			boolean limited = peer != null && state == ACTIVE;
+			if (limited) {
+				long delay = client.limiter.downloadDelay(peer);
+				if (delay > 0) {
+					pause(SelectionKey.OP_READ, delay);
+					return;
+				}
+			}
+			int n = channel.read(in);
+			if (n == -1) {
+				close();
+				return;
+			}
+			if (limited) client.limiter.downloaded(peer, n);
+			process();
+		}
+
+		/**
+		 * Handles every complete message in the read buffer, stopping early if the hasher falls behind
+		 */
+		private void process() throws IOException {
+			in.flip();
+			int needed = 0;
+			while (!closed) {
+				if (state == HANDSHAKE) {
+					if (in.remaining() < HEADER_SIZE) break;
+					byte[] response = new byte[HEADER_SIZE];
+					in.get(response);
+					if (!handshake(response)) {
+						close();
+						return;
+					}
+					state = ACTIVE;
+					continue;
+				}
+
+				if (in.remaining() < 4) break;
+				int length = in.getInt(in.position());
+				// a bad length would grow the read buffer to whatever the peer claims
+				Message.checkLength(length, Message.KEEP_ALIVE_ID, client.tracker.getTorrentInfo().piece_hashes.length);
+				if (in.remaining() < 4 + length) {
+					needed = 4 + length;
+					break;
+				}
+				Message message = Message.decode(in, client.tracker.getTorrentInfo().piece_hashes.length);
+				if (!peer.handleMessage(message)) return;
+				if (peer.isHashBacklogged()) {
+					// the rest of the buffer waits with the socket until resumeReads
+					hash_paused = true;
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+					break;
+				}
+			}
+			if (closed) return;
+			in.compact();
+			if (needed > in.capacity()) {
+				ByteBuffer larger = ByteBuffer.allocate(needed);
+				in.flip();
+				larger.put(in);
+				in = larger;
+			}
+		}
+
+		private void write() throws IOException {
+			while (true) {
+				if (hasRemaining(pending)) {
+					// one gathering write for message headers and piece blocks
+					channel.write(pending);
+					if (hasRemaining(pending)) return;
+				}
+				if (region != null) {
+					// block goes from the file to the socket without passing through the heap
+					region_done += region.transferTo(region_done, channel);
+					if (region_done < region.getBlockLength()) return;
+					region = null;
+				}
+				if (!fill()) break;
+			}
+			if (!closed) key.interestOps(read_resume == 0 && !hash_paused ? SelectionKey.OP_READ : 0);
+		}
+
+		/**
+		 * Batches every sendable message into pending. Headers and small messages are encoded into the
+		 * write buffer, piece blocks are added as buffers of their own so they are not copied.
+		 * @return true if there is something to write
+		 */
+		private boolean fill() throws IOException {
+			out.clear();
+			parts.clear();
+			int mark = 0;
+			if (handshake != null) {
+				out.put(handshake);
+				handshake = null;
+			}
+			if (peer != null && state == ACTIVE) {
+				Message message;
+				int count = 0;
+				while (count++ < MAX_BATCH && out.position() < out.capacity() && !throttleWrite() && (message = peer.pollMessage()) != null) {
+					client.limiter.uploaded(peer, 4 + message.getLength());
+					if (message instanceof Message.FilePieceMessage) {
+						ByteBuffer header = ((Message.FilePieceMessage) message).header();
+						reserve(header.remaining());
+						out.put(header);
+						region = (Message.FilePieceMessage) message;
+						region_done = 0;
+						break;
+					}
+					if (message instanceof Message.PieceMessage) {
+						Message.PieceMessage piece = (Message.PieceMessage) message;
+						reserve(13);
+						piece.putHeader(out);
+						mark = cut(mark);
+						parts.add(piece.getBlock());
+						continue;
+					}
+					reserve(4 + message.getLength());
+					Message.encode(out, message);
+				}
+			}
+			cut(mark);
+			pending = parts.toArray(new ByteBuffer[parts.size()]);
+			return hasRemaining(pending);
+		}
+
+		/**
+		 * @return true if the limiter holds back writes to this peer, which then stop until it allows them
+		 */
+		private boolean throttleWrite() {
+			long delay = client.limiter.uploadDelay(peer);
+			if (delay <= 0) return false;
+			pause(SelectionKey.OP_WRITE, delay);
+			return true;
+		}
+
+		/**
+		 * Stops selecting op for delay nanoseconds
+		 * @param op OP_READ or OP_WRITE
+		 * @param delay
+		 */
+		private void pause(int op, long delay) {
+			boolean listed = read_resume != 0 || write_resume != 0;
+			long at = System.nanoTime() + delay;
+			if (op == SelectionKey.OP_READ) {
+				read_resume = at;
+			} else {
+				write_resume = at;
+			}
+			key.interestOps(key.interestOps() & ~op);
+			if (!listed) loop.throttled.add(this);
+		}
+
+		private long resumeAt() {
+			if (read_resume == 0) return write_resume;
+			if (write_resume == 0) return read_resume;
+			return Math.min(read_resume, write_resume);
+		}
+
+		/**
+		 * Turns reads and writes whose delay is up back on
+		 * @param now
+		 * @return true once nothing is throttled any more
+		 */
+		private boolean resume(long now) {
+			if (closed || !key.isValid()) return true;
+			int ops = 0;
+			if (read_resume != 0 && now - read_resume >= 0) {
+				read_resume = 0;
+				if (!hash_paused) ops |= SelectionKey.OP_READ;
+			}
+			if (write_resume != 0 && now - write_resume >= 0) {
+				write_resume = 0;
+				ops |= SelectionKey.OP_WRITE;
+			}
+			if (ops != 0) key.interestOps(key.interestOps() | ops);
+			return read_resume == 0 && write_resume == 0;
+		}
+
+		/**
+		 * Adds the write buffer contents from mark to its position as the next part
+		 * @param mark
+		 * @return new mark
+		 */
+		private int cut(int mark) {
+			if (out.position() > mark) {
+				ByteBuffer part = out.duplicate();
+				part.position(mark);
+				part.limit(out.position());
+				parts.add(part);
+			}
+			return out.position();
+		}
+
+		private boolean hasRemaining(ByteBuffer[] buffers) {
+			for (ByteBuffer buffer : buffers) {
+				if (buffer.hasRemaining()) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Grows the write buffer, while it is being filled, so that n more bytes fit
+		 * @param n
+		 */
+		private void reserve(int n) {
+			if (n <= out.remaining()) return;
+			ByteBuffer larger = ByteBuffer.allocate(out.position() + n);
+			out.flip();
+			larger.put(out);
+			out = larger;
+		}
+
+		/**
+		 * Turns reads back on from any thread once the peer's hash backlog is done, handling the
+		 * messages still buffered first
+		 */
+		public void resumeReads() {
+			loop.execute(new Runnable() {
+				public void run() {
+					if (closed || !hash_paused || peer.isHashBacklogged()) return;
+					hash_paused = false;
+					if (read_resume == 0) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+					try {
+						process();
+					} catch (IOException e) {
+						System.out.println("Caught IO Exception on peer connection: " + e.getMessage());
+						close();
+					}
+				}
+			});
+		}
+
+		/**
+		 * Turns on write interest from any thread
+		 */
+		public void requestWrite() {
+			loop.execute(new Runnable() {
+				public void run() {
+					// a throttled connection gets its write interest back when it resumes
+					if (!closed && key != null && key.isValid() && write_resume == 0) {
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					}
+				}
+			});
+		}
+
+		public void close() {
+			if (closed) return;
+			closed = true;
+			if (key != null) key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.err.println("IOException closing channel " + e.getMessage());
+			}
+			if (peer != null) peer.close();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+import java.lang.reflect.Method;
+
+/**
+ *
+ * Creates the threads that run peer sessions. With -Drubt.io=virtual they are virtual threads,
+ * looked up reflectively so the client still builds and runs on JDKs without them, in which case
+ * platform threads are used.
+ *
+ */
+public class PeerThreads {
+
+	private static Object builder;
+	private static Method unstarted = lookupVirtualBuilder();
+
+	private static Method lookupVirtualBuilder() {
+		if (!RUBTClient.io_mode.equals("virtual")) return null;
+		try {
+			builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+		} catch (Exception e) {
+			System.out.println("Virtual threads not available, using platform threads");
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if threads from this class are virtual
+	 */
+	public static boolean isVirtual() {
+		return unstarted != null;
+	}
+
+	/**
+	 * Creates an unstarted thread for task, virtual if enabled
+	 * @param task
+	 * @param name
+	 * @return thread
+	 */
+	public static Thread newThread(Runnable task, String name) {
+		if (unstarted != null) {
+			try {
+				Thread thread = (Thread) unstarted.invoke(builder, task);
+				thread.setName(name);
+				return thread;
+			} catch (Exception e) {
+				System.err.println("Could not create virtual thread " + e.getMessage());
+			}
+		}
+		return new Thread(task, name);
+	}
+
+	/**
+	 * Creates and starts a thread for task
+	 * @param task
+	 * @param name
+	 * @return started thread
+	 */
+	public static Thread start(Runnable task, String name) {
+		Thread thread = newThread(task, name);
+		thread.start();
+		return thread;
+	}
+}
@@ -0,0 +1,150 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * Compares platform and virtual threads for thread-per-peer sessions. Each session is a loopback
+ * socket with a reader blocked in readInt like Peer.Producer and a writer parked in
+ * OutboundQueue.take like Peer.Consumer. Sessions are opened until the target count or the first
+ * failure, and the peak count, heap, resident memory and OS threads are printed for each mode.
+ * Every mode runs in its own JVM since rubt.io is read once at startup.
+ *
+ * Usage: java -cp . PeerThreadsBenchmark [sessions]
+ *
+ */
+public class PeerThreadsBenchmark {
+
+	private static final int STEP = 500;
+
+	public static void main(String[] args) throws Exception {
+
+		int target = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		if (args.length > 1 && args[1].equals("child")) {
+			child(target);
+			return;
+		}
+
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		for (String mode : new String[] {"threads", "virtual"}) {
+			Process process = new ProcessBuilder(java, "-Drubt.io=" + mode, "-cp", System.getProperty("java.class.path"),
+					"PeerThreadsBenchmark", String.valueOf(target), "child").redirectErrorStream(true).start();
+			BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			String line;
+			while ((line = out.readLine()) != null) {
+				System.out.println(mode + ": " + line);
+			}
+			process.waitFor();
+		}
+	}
+
+	private static void child(int target) throws Exception {
+
+		if (RUBTClient.io_mode.equals("virtual") && !PeerThreads.isVirtual()) {
+			System.out.println("results are for platform threads, this JDK has no virtual threads");
+		}
+
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+		final List<SocketChannel> accepted = new ArrayList<SocketChannel>();
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						SocketChannel channel = server.accept();
+						synchronized (accepted) {
+							accepted.add(channel);
+						}
+					}
+				} catch (IOException e) {
+					// server closed
+				}
+			}
+		}, "Acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		long heap_before = heapUsed();
+		long rss_before = rss();
+		int threads_before = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		List<SocketChannel> sessions = new ArrayList<SocketChannel>();
+		String failure = null;
+		long start = System.nanoTime();
+		try {
+			while (sessions.size() < target) {
+				SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+				sessions.add(channel);
+				final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+				final OutboundQueue queue = new OutboundQueue();
+				PeerThreads.start(new Runnable() {
+					public void run() {
+						try {
+							in.readInt();
+						} catch (IOException e) {
+							// socket closed at the end of the run
+						}
+					}
+				}, "Producer-" + sessions.size());
+				PeerThreads.start(new Runnable() {
+					public void run() {
+						try {
+							queue.take();
+						} catch (InterruptedException e) {
+							// done
+						}
+					}
+				}, "Consumer-" + sessions.size());
+				if (sessions.size() % STEP == 0) System.out.println("  " + sessions.size() + " sessions");
+			}
+		} catch (Throwable e) {
+			failure = e.toString();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		int peak = sessions.size();
+		long heap = heapUsed() - heap_before;
+		long rss = rss() - rss_before;
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threads_before;
+
+		System.out.println(String.format("peak %d sessions in %.1f s%s", peak, seconds, failure == null ? "" : ", stopped by " + failure));
+		System.out.println(String.format("heap %d KiB (%d B/session), rss %s, os threads %d",
+				heap / 1024, peak == 0 ? 0 : heap / peak,
+				rss < 0 ? "n/a" : (rss / 1024) + " KiB (" + (peak == 0 ? 0 : rss / peak) + " B/session)", threads));
+
+		for (SocketChannel channel : sessions) channel.close();
+		server.close();
+		System.exit(0);
+	}
+
+	private static long heapUsed() {
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * @return resident set size in bytes from /proc, or -1 where there is none
+	 */
+	private static long rss() {
+		try (BufferedReader status = new BufferedReader(new FileReader("/proc/self/status"))) {
+			String line;
+			while ((line = status.readLine()) != null) {
+				if (line.startsWith("VmRSS:")) return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+			}
+		} catch (IOException e) {
+			// not Linux
+		}
+		return -1;
+	}
+}
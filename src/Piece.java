@@ -1,46 +1,86 @@
+
+
+import java.nio.ByteBuffer;
+
 /**
- * 
- * Encapsulates a Piece object, used to store downloaded pieces. 
+ *
+ * Encapsulates a Piece object, used to store a piece while its blocks download. The buffer is
+ * borrowed from OutFile's piece pool and handed back once the piece is written or dropped.
  *
  */
 public class Piece {
 
-	private byte[] data;
+	private ByteBuffer data;
 	int offset;
-	
+
 	/**
-	 * Constructor takes size of piece in bytes
-	 * @param size
+	 * Constructor takes a buffer with limit equal to the size of the piece in bytes
+	 * @param data
 	 */
-	public Piece(int size) {
-		data = new byte[size];
+	public Piece(ByteBuffer data) {
+		this.data = data;
 		this.offset = 0;
 	}
-	
+
 	/**
-	 * Add piece data to byte[] data
-	 * @param offset within byte[]
-	 * @param piece data
+	 * Add piece data to the buffer
+	 * @param offset within the piece
+	 * @param data
 	 */
 	public void addPiece(int offset, byte[] data) {
-		
-		for (int i = 0; i < data.length; i++) {
-		
-			this.data[offset+i] = data[i];
-		}
-		
+
+		ByteBuffer target = this.data.duplicate();
+		target.position(offset);
+		target.put(data);
+
+		this.offset = offset;
+	}
+
+	/**
+	 * Add block data between position and limit to the buffer in one bulk copy
+	 * @param offset within the piece
+	 * @param block data
+	 */
+	public void addPiece(int offset, ByteBuffer block) {
+
+		ByteBuffer target = this.data.duplicate();
+		target.position(offset);
+		target.put(block.duplicate());
+
 		this.offset = offset;
 	}
 	/**
 	 * Get piece data
-	 * @return byte[] data
+	 * @return view of the whole piece
+	 */
+	public ByteBuffer getData() {
+		ByteBuffer view = data.duplicate();
+		view.position(0);
+		return view;
+	}
+
+	/**
+	 * @param from
+	 * @param to
+	 * @return view of bytes [from, to) of the piece
+	 */
+	public ByteBuffer getData(int from, int to) {
+		ByteBuffer view = data.duplicate();
+		view.limit(to);
+		view.position(from);
+		return view;
+	}
+
+	/**
+	 * Buffer to hand back to the pool
+	 * @return buffer
 	 */
-	public byte[] getData() {
+	ByteBuffer getBuffer() {
 		return data;
 	}
-	
+
 	/**
-	 * Get offset within byte[] data last written to. Equals 0 before first block downloaded, piece_length afterwards. 
+	 * Get offset within the piece last written to. Equals 0 before first block downloaded, piece_length afterwards.
 	 * @return offset
 	 */
 	public int getOffset() {
@@ -0,0 +1,173 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Verification stage between the network threads and the disk. Blocks are hashed and finished pieces
+ * checked on a pool sized to the cores, and every result goes to a single writer thread that stores
+ * the piece, sends HAVE to all peers and tells the client. A piece has at most one block hash task
+ * queued, which picks up every block stored before it runs. Submitting never blocks: once the queue
+ * holds queue_size tasks, the peer whose block was queued stops reading until that task is done, so
+ * only the connections feeding the backlog slow down.
+ *
+ */
+public class PieceHasher {
+
+	public static final int threads = Integer.getInteger("rubt.hash.threads", Runtime.getRuntime().availableProcessors());
+	public static final int queue_size = Integer.getInteger("rubt.hash.queue", 256);
+
+	private RUBTClient client;
+	private ThreadPoolExecutor hashers;
+	private ExecutorService writer;
+
+	private AtomicLong verified = new AtomicLong();
+	private AtomicLong failed = new AtomicLong();
+	private Histogram latency = new Histogram();
+
+	// pieces with a block hash task queued and not yet started
+	private Set<Integer> pending = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param client
+	 */
+	public PieceHasher(RUBTClient client) {
+		this.client = client;
+		// unbounded, but paused peers add at most one task each past queue_size
+		this.hashers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), daemon("Hasher"));
+		this.writer = Executors.newSingleThreadExecutor(daemon("PieceWriter"));
+	}
+
+	/**
+	 * A block was stored, hash it along with any blocks after it that are already in
+	 * @param piece
+	 * @param from peer that delivered the block
+	 */
+	public void blockAdded(final int piece, Peer from) {
+		// a task already queued for the piece will see this block too
+		if (!pending.add(piece)) return;
+		try {
+			submit(from, new Runnable() {
+				public void run() {
+					// cleared first so a block stored while hashing queues another pass
+					pending.remove(piece);
+					client.outfile.hashBlocks(piece);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pending.remove(piece);
+			throw e;
+		}
+	}
+
+	/**
+	 * The last block of piece was stored, check it against the metainfo
+	 * @param piece
+	 * @param from peer that delivered the last block
+	 */
+	public void pieceComplete(final int piece, Peer from) {
+		final long queued_at = System.nanoTime();
+		submit(from, new Runnable() {
+			public void run() {
+				final boolean valid = client.outfile.checkPiece(piece);
+				latency.observe(System.nanoTime() - queued_at);
+				(valid ? verified : failed).incrementAndGet();
+
+				writer.execute(new Runnable() {
+					public void run() {
+						client.pieceVerified(piece, valid);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Queues task, holding back reads from peer until it is done if the queue is already full
+	 * @param from
+	 * @param task
+	 */
+	private void submit(final Peer from, final Runnable task) {
+		final boolean backlog = hashers.getQueue().size() >= queue_size;
+		// counted before the task can finish, so the peer cannot be resumed ahead of its pause
+		if (backlog) from.hashQueued();
+		try {
+			hashers.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						if (backlog) from.hashDone();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			if (backlog) from.hashDone();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return hash tasks waiting for a worker
+	 */
+	public int getQueueDepth() {
+		return hashers.getQueue().size();
+	}
+
+	/**
+	 * @return mean time from the last block arriving to the piece being checked, in milliseconds
+	 */
+	public double getAverageLatency() {
+		return latency.getMean();
+	}
+
+	/**
+	 * @return longest time from the last block arriving to the piece being checked, in milliseconds
+	 */
+	public double getMaxLatency() {
+		return latency.getMax();
+	}
+
+	/**
+	 * @return time from the last block arriving to the piece being checked
+	 */
+	public Histogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * @return pieces that failed the hash check
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public void shutdown() {
+		hashers.shutdown();
+		writer.shutdown();
+	}
+
+	public String stats() {
+		return String.format("hash queue: %d, verified: %d, failed: %d, avg latency: %.2f ms, max latency: %.2f ms",
+				getQueueDepth(), verified.get(), failed.get(), getAverageLatency(), getMaxLatency());
+	}
+
+	private static ThreadFactory daemon(final String name) {
+		return new ThreadFactory() {
+			private int count = 0;
+			public synchronized Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, name + "-" + count++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
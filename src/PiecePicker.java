@@ -0,0 +1,126 @@
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+/**
+ *
+ * Rarest first piece selection. Pieces we still need are kept in one array sorted by how many
+ * peers have them, with the start of every availability bucket recorded. A HAVE moves a piece one
+ * bucket up with a single swap, so updates are O(1) and a pick only looks at the rarest pieces
+ * until it finds one the peer can give us. Ties are broken by starting at a random spot in a bucket.
+ *
+ */
+public class PiecePicker {
+
+	private int[] order;
+	private int[] position;
+	private int[] availability;
+	private boolean[] done;
+
+	// start[b] is where bucket b begins in order, start[buckets] is the end of the pieces we need
+	private int[] start;
+	private int buckets;
+
+	private Random random = new Random();
+
+	/**
+	 * @param num_pieces
+	 */
+	public PiecePicker(int num_pieces) {
+		order = new int[num_pieces];
+		position = new int[num_pieces];
+		availability = new int[num_pieces];
+		done = new boolean[num_pieces];
+		for (int i = 0; i < num_pieces; i++) {
+			order[i] = i;
+			position[i] = i;
+		}
+		// shuffle so pieces nobody has announced yet are not handed out in index order
+		for (int i = num_pieces - 1; i > 0; i--) {
+			swap(i, random.nextInt(i + 1));
+		}
+		start = new int[] {0, num_pieces};
+		buckets = 1;
+	}
+
+	/**
+	 * A peer announced piece index through BITFIELD or HAVE
+	 * @param index
+	 */
+	public synchronized void increment(int index) {
+		int count = availability[index]++;
+		if (done[index]) return;
+		if (count + 1 == buckets) grow();
+		int last = start[count + 1] - 1;
+		swap(position[index], last);
+		start[count + 1]--;
+	}
+
+	/**
+	 * A peer that had piece index went away
+	 * @param index
+	 */
+	public synchronized void decrement(int index) {
+		if (availability[index] == 0) return;
+		int count = availability[index]--;
+		if (done[index]) return;
+		swap(position[index], start[count]);
+		start[count]++;
+	}
+
+	/**
+	 * We have piece index, it is never picked again
+	 * @param index
+	 */
+	public synchronized void remove(int index) {
+		if (done[index]) return;
+		for (int b = availability[index]; b < buckets; b++) {
+			swap(position[index], start[b + 1] - 1);
+			start[b + 1]--;
+		}
+		done[index] = true;
+	}
+
+	/**
+	 * Picks the rarest piece in peer_have that wanted accepts
+	 * @param peer_have
+	 * @param wanted
+	 * @return piece index or -1
+	 */
+	public synchronized int pick(Bitfield peer_have, IntPredicate wanted) {
+		// bucket 0 holds pieces no peer has announced
+		for (int b = 1; b < buckets; b++) {
+			int from = start[b];
+			int size = start[b + 1] - from;
+			if (size == 0) continue;
+			int offset = random.nextInt(size);
+			for (int i = 0; i < size; i++) {
+				int piece = order[from + (offset + i) % size];
+				if (peer_have.get(piece) && wanted.test(piece)) {
+					return piece;
+				}
+			}
+		}
+		return -1;
+	}
+
+	public synchronized int getAvailability(int index) {
+		return availability[index];
+	}
+
+	private void grow() {
+		int[] larger = new int[buckets + 2];
+		System.arraycopy(start, 0, larger, 0, buckets + 1);
+		larger[buckets + 1] = start[buckets];
+		start = larger;
+		buckets++;
+	}
+
+	private void swap(int i, int j) {
+		int a = order[i];
+		int b = order[j];
+		order[i] = b;
+		order[j] = a;
+		position[b] = i;
+		position[a] = j;
+	}
+}
@@ -0,0 +1,133 @@
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+/**
+ *
+ * Compares PiecePicker with the linear scan it replaced. A swarm of peers with random bitfields
+ * announces itself, then pieces are picked for random peers and marked done until most of the
+ * torrent is in, with a HAVE from the swarm between picks. Prints time per pick and per HAVE and
+ * how rare the picked pieces were.
+ *
+ * Usage: java -cp . PiecePickerBenchmark [pieces] [peers] [picks]
+ *
+ */
+public class PiecePickerBenchmark {
+
+	public static void main(String[] args) {
+
+		int num_pieces = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int num_peers = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int picks = args.length > 2 ? Integer.parseInt(args[2]) : 50000;
+
+		for (int round = 0; round < 2; round++) {
+			run("scan", num_pieces, num_peers, picks);
+			run("picker", num_pieces, num_peers, picks);
+		}
+	}
+
+	private static void run(String mode, int num_pieces, int num_peers, int picks) {
+
+		Random random = new Random(1);
+		Bitfield[] peers = new Bitfield[num_peers];
+		int[] availability = new int[num_pieces];
+		for (int p = 0; p < num_peers; p++) {
+			peers[p] = new Bitfield(num_pieces);
+			// a few seeds, the rest hold anything from a little to most of the torrent
+			double density = p < 2 ? 1.0 : random.nextDouble() * 0.9;
+			for (int i = 0; i < num_pieces; i++) {
+				if (random.nextDouble() < density) {
+					peers[p].set(i);
+					availability[i]++;
+				}
+			}
+		}
+
+		// the scan worked on the raw BITFIELD bytes
+		byte[][] peer_bytes = new byte[num_peers][];
+		for (int p = 0; p < num_peers; p++) peer_bytes[p] = peers[p].toBytes();
+
+		final Bitfield done = new Bitfield(num_pieces);
+		PiecePicker picker = null;
+		LinearScan scan = null;
+		long start = System.nanoTime();
+		if (mode.equals("picker")) {
+			picker = new PiecePicker(num_pieces);
+			for (Bitfield have : peers) {
+				for (int i = have.nextSetBit(0); i >= 0; i = have.nextSetBit(i + 1)) picker.increment(i);
+			}
+		} else {
+			scan = new LinearScan(num_pieces);
+		}
+		double setup_ms = (System.nanoTime() - start) / 1e6;
+
+		IntPredicate wanted = new IntPredicate() {
+			public boolean test(int piece) {
+				return !done.get(piece);
+			}
+		};
+
+		long pick_nanos = 0;
+		long have_nanos = 0;
+		long rarity = 0;
+		int picked = 0;
+		for (int n = 0; n < picks; n++) {
+			int peer = random.nextInt(num_peers);
+
+			long t = System.nanoTime();
+			int piece = picker != null ? picker.pick(peers[peer], wanted) : scan.pick(peer_bytes[peer], num_pieces);
+			pick_nanos += System.nanoTime() - t;
+			if (piece >= 0) {
+				picked++;
+				rarity += availability[piece];
+				done.set(piece);
+				if (picker != null) picker.remove(piece);
+				else scan.done(piece);
+			}
+
+			// the swarm keeps downloading too
+			int p = random.nextInt(num_peers);
+			int index = random.nextInt(num_pieces);
+			if (!peers[p].get(index)) {
+				peers[p].set(index);
+				peer_bytes[p][index / 8] |= 1 << (7 - index % 8);
+				availability[index]++;
+				t = System.nanoTime();
+				if (picker != null) picker.increment(index);
+				have_nanos += System.nanoTime() - t;
+			}
+		}
+
+		System.out.println(String.format("%-6s setup %8.1f ms  pick %10.1f ns  have %6.1f ns  picked %d, mean availability %.1f of %d peers",
+				mode, setup_ms, (double) pick_nanos / picks, (double) have_nanos / picks, picked,
+				picked == 0 ? 0 : (double) rarity / picked, num_peers));
+	}
+
+	/**
+	 * The old OutFile.needPiece: first piece from index 0 that the peer has and we do not
+	 */
+	private static class LinearScan {
+
+		private byte[] client_bitfield;
+
+		public LinearScan(int num_pieces) {
+			client_bitfield = new byte[(num_pieces + 7) / 8];
+		}
+
+		public void done(int index) {
+			client_bitfield[index / 8] |= 1 << (7 - index % 8);
+		}
+
+		public int pick(byte[] peer_bitfield, int num_pieces) {
+			for (int i = 0; i < num_pieces; i++) {
+				int m = i % 8;
+				int byte_index = (i - m) / 8;
+				if ((client_bitfield[byte_index] >> (7 - m) & 1) != 1) {
+					if ((peer_bitfield[byte_index] >> (7 - m) & 1) == 1) {
+						return i;
+					}
+				}
+			}
+			return -1;
+		}
+	}
+}
@@ -15,9 +15,13 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
 import java.util.Scanner;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.net.URL;
 
 import GivenTools.BencodingException;
@@ -27,30 +31,58 @@ public class RUBTClient{
 	
 	public Tracker tracker;
 
-	public int uploaded;
-	public int downloaded;
+	// block and protocol bytes of the whole session, fed by every peer's meters
+	public final RateMeter download = new RateMeter();
+	public final RateMeter upload = new RateMeter();
+	public final RateMeter protocol_in = new RateMeter();
+	public final RateMeter protocol_out = new RateMeter();
+	// verified and stored pieces
+	public final RateMeter pieces = new RateMeter();
 	public static boolean seeding;
 
 
 	private static boolean keepRunning;
 	private static int HEADER_SIZE = 68;
 
-	public Queue<Peer> peer_queue;
+	/**
+	 * Peer I/O model, "threads" for a Producer/Consumer pair per peer, "virtual" for the same pair on
+	 * virtual threads or "nio" for PeerEngine
+	 */
+	public static final String io_mode = System.getProperty("rubt.io", "threads");
+	public static final int io_threads = Integer.getInteger("rubt.io.threads", Runtime.getRuntime().availableProcessors());
+
+	public PeerEngine engine;
+
+	public PieceHasher hasher;
+
+	public ResumeFile resume;
+
+	/**
+	 * Seconds between fast-resume checkpoints, -Drubt.resume.interval
+	 */
+	public static final int resume_interval = Integer.getInteger("rubt.resume.interval", 60);
+
+	/**
+	 * Seconds a block request may go unanswered before the block is given to another peer,
+	 * -Drubt.request.timeout
+	 */
+	public static final int request_timeout = Integer.getInteger("rubt.request.timeout", 30);
+
+	public BlockingQueue<Peer> peer_queue;
 
 	public String outputFile;
 
 	public OutFile outfile;
 
 	public List<Peer> peerList;
-	public List<Peer> want_unchoke;
-	public final int unchoke_limit = 3;
-	private static int unchoked_peers;
-	public List<Peer> interested_peers;
+
+	// set once every missing piece has been requested
+	public volatile boolean endgame;
+	public Choker choker;
+	public BandwidthLimiter limiter;
+	public Metrics metrics;
     private List<CompleteIndex> totalCompleted;
     
-	private int unchoked;
-	public final int unchoked_limit = 3;
-    
 	private class CompleteIndex {
 		public int index;
 		public int total;
@@ -75,11 +107,15 @@ public class RUBTClient{
 
 		this.outputFile = outputFile;
 		outfile = new OutFile(tracker.getTorrentInfo());
+		hasher = new PieceHasher(this);
+		resume = new ResumeFile(outfile.getFilename(), tracker.getTorrentInfo().info_hash.array());
 		keepRunning = true;
 		seeding = false;
-		unchoked_peers = 0;
+		choker = new Choker(this);
+		limiter = new BandwidthLimiter(this);
+		metrics = new Metrics(this);
 		totalCompleted = new ArrayList<>();
-		for (int i = 0; i < outfile.completed.length; i++) {
+		for (int i = 0; i < outfile.getNumPieces(); i++) {
 			totalCompleted.add(new CompleteIndex(i, 0));
 		}
 	}
@@ -115,9 +151,8 @@ public class RUBTClient{
 		
 		RUBTClient client = new RUBTClient(tracker, output_file);
 
-		client.peerList = response.getValidPeers();
-		client.peer_queue = new ConcurrentLinkedQueue<Peer>();
-		client.want_unchoke = new ArrayList<Peer>();
+		client.peerList = new CopyOnWriteArrayList<Peer>(response.getValidPeers());
+		client.peer_queue = new LinkedBlockingQueue<Peer>();
 
 		Peer peer = client.peerList.get(0);
 		peer.setClient(client);
@@ -125,11 +160,12 @@ public class RUBTClient{
 		
 		client.outfile.setClient(client);
 
-		File file = new File(output_file);
+		File file = new File(client.outfile.getFilename());
 		
 		int complete = -1;
 		if (file.exists()) {
-			complete = client.outfile.loadState();
+			Bitfield saved = client.resume.load(num_pieces);
+			complete = saved != null ? client.outfile.resume(saved) : client.outfile.loadState();
 
 		} else {
 			client.outfile.createFile();
@@ -138,16 +174,163 @@ public class RUBTClient{
 		if (complete == 1) seeding = true;
 		
 		 (new Thread(new Listener(client))).start();
-		 (new Thread(new PeerListener(client))).start();
+		 client.metrics.start();
+
+		 final RUBTClient checkpoint = client;
+		 Timer timer = new Timer("Timer", true);
+		 timer.schedule(new TimerTask() {
+			 public void run() {
+				 checkpoint.saveResume();
+			 }
+		 }, resume_interval * 1000L, resume_interval * 1000L);
+		 timer.schedule(new TimerTask() {
+			 public void run() {
+				 checkpoint.expireRequests();
+			 }
+		 }, 1000, 1000);
+		 timer.schedule(new TimerTask() {
+			 public void run() {
+				 checkpoint.choker.rechoke();
+			 }
+		 }, Choker.rechoke_interval * 1000L, Choker.rechoke_interval * 1000L);
+
+		 if (io_mode.equals("nio")) {
+			 client.engine = new PeerEngine(client, io_threads);
+			 client.engine.start();
+			 client.engine.listen(6881);
+		 } else {
+			 PeerThreads.start(new PeerListener(client), "PeerListener");
+		 }
 		 
 		 while (true) {
-			Peer p = client.peer_queue.poll();
-			if (p == null) continue;
+			final Peer p = client.peer_queue.take();
+			if (client.engine != null) {
+				client.engine.connect(p);
+				continue;
+			}
+			if (PeerThreads.isVirtual()) {
+				// a slow connect only parks its own virtual thread
+				PeerThreads.start(new Runnable() {
+					public void run() {
+						if (p.connectToPeer()) p.startThreads();
+					}
+				}, "Connect-" + p.getPeerID());
+				continue;
+			}
 			p.connectToPeer();
 			p.startThreads();
 		}
 	}
 	
+	/**
+	 * @return session totals and rates over the last RateMeter.window seconds
+	 */
+	public String rateStats() {
+		return String.format("downloaded: %d KiB (%.1f KiB/s), uploaded: %d KiB (%.1f KiB/s), protocol in: %d KiB, out: %d KiB",
+				download.getTotal() / 1024, download.getRate() / 1024, upload.getTotal() / 1024, upload.getRate() / 1024,
+				protocol_in.getTotal() / 1024, protocol_out.getTotal() / 1024);
+	}
+
+	/**
+	 * Checkpoint completed pieces to the fast-resume file
+	 */
+	public void saveResume() {
+		try {
+			// snapshot first, pieces completed during the flush are left for the next save
+			Bitfield completed = outfile.getCompleted();
+			outfile.flush();
+			resume.save(completed);
+		} catch (IOException e) {
+			System.err.println("IOException saving resume state " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Takes back blocks from peers that did not answer their requests in time and lets the other
+	 * peers request them
+	 */
+	public void expireRequests() {
+		List<ReservationTable.Reservation> expired = outfile.expireReservations(TimeUnit.SECONDS.toNanos(request_timeout));
+		if (expired.isEmpty()) return;
+		for (ReservationTable.Reservation reservation : expired) {
+			reservation.owner.expired(reservation.piece, reservation.block * Peer.max_length);
+		}
+		requestMore();
+	}
+
+	/**
+	 * Lets every connected peer top up its requests after blocks or a piece slot became free
+	 */
+	public void requestMore() {
+		for (Peer peer : peerList) {
+			peer.requestMore();
+		}
+	}
+
+	/**
+	 * A connected peer has piece index, counts towards its availability for rarest first
+	 * @param index
+	 */
+	public void have(int index) {
+		outfile.picker.increment(index);
+	}
+
+	/**
+	 * A block arrived during end-game, withdraw the duplicate requests the other peers hold for it
+	 * @param index
+	 * @param offset
+	 * @param from peer that delivered the block
+	 */
+	public void cancel(int index, int offset, Peer from) {
+		for (Peer peer : peerList) {
+			if (peer != from) peer.cancelRequest(index, offset);
+		}
+	}
+
+	/**
+	 * Result of the hash check of a downloaded piece, delivered on the PieceHasher writer thread.
+	 * A good piece is written and announced to every connected peer, a bad one is fetched again.
+	 * @param index
+	 * @param valid
+	 */
+	public void pieceVerified(int index, boolean valid) {
+		if (!valid) {
+			System.out.println("SHA FAILED " + index);
+			outfile.discard(index);
+			requestMore();
+			return;
+		}
+		System.out.println("SHA SUCCESS " + index);
+		if (!outfile.write(index)) {
+			outfile.discard(index);
+			requestMore();
+			return;
+		}
+		pieces.add(1);
+		for (Peer peer : peerList) {
+			if (peer.isConnected()) peer.send(new Message.HaveMessage(index));
+		}
+		completed(index);
+		// the piece no longer counts against the budget of pieces in progress
+		requestMore();
+	}
+
+	/**
+	 * Piece index is verified and on disk
+	 * @param index
+	 */
+	public void completed(int index) {
+		totalCompleted.get(index).have = true;
+	}
+
+	/**
+	 * A peer that had piece index disconnected
+	 * @param index
+	 */
+	public void lost(int index) {
+		outfile.picker.decrement(index);
+	}
+
 	private static class PeerListener implements Runnable {
 		
 		private RUBTClient client;
@@ -228,14 +411,64 @@ public class RUBTClient{
 		public void run(){
 			Scanner scanner = new Scanner(System.in);
 			while(true){
-				if(scanner.nextLine().equals("quit")){
+				String line = scanner.nextLine();
+				if(line.startsWith("limit")){
+					limit(line.split("\\s+"));
+				}else if(line.equals("quit")){
+					System.out.println(client.rateStats());
+					System.out.println(client.limiter.stats());
+					System.out.println(Message.block_pool.stats());
+					System.out.println(client.hasher.stats());
+					if (client.outfile.cacheStats() != null) System.out.println(client.outfile.cacheStats());
+					if (client.outfile.readCacheStats() != null) System.out.println(client.outfile.readCacheStats());
+					for (Peer peer : client.peerList) {
+						System.out.println(peer.getPeerID() + " outbound " + peer.getOutboundQueue().stats());
+						if (peer.isConnected()) System.out.println(String.format("%s down: %.1f KiB/s, up: %.1f KiB/s",
+								peer.getPeerID(), peer.getDownloadRate() / 1024, peer.getUploadRate() / 1024));
+					}
 					client.outfile.close();
+					client.saveResume();
 					System.exit(1);
 				}else{
-					System.out.println("incorrect input. try typing \"quit\"");
+					System.out.println("incorrect input. try typing \"quit\" or \"limit up|down|peer-up|peer-down <KiB/s>\"");
 				}
 			}
 		}
+
+		/**
+		 * Changes a bandwidth limit while running, e.g. "limit up 200" or "limit peer-down 0"
+		 * @param args
+		 */
+		private void limit(String[] args) {
+			int rate;
+			try {
+				rate = args.length == 3 ? Integer.parseInt(args[2]) : -1;
+			} catch (NumberFormatException e) {
+				rate = -1;
+			}
+			if (rate < 0) {
+				System.out.println(client.limiter.stats());
+				return;
+			}
+			switch (args[1]) {
+			case "up":
+				client.limiter.setUploadLimit(rate);
+				break;
+			case "down":
+				client.limiter.setDownloadLimit(rate);
+				break;
+			case "peer-up":
+				client.limiter.setPeerUploadLimit(rate);
+				break;
+			case "peer-down":
+				client.limiter.setPeerDownloadLimit(rate);
+				break;
+			default:
+				System.out.println("unknown limit " + args[1]);
+				return;
+			}
+			System.out.println(client.limiter.stats());
+		}
 	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,54 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Storage over one RandomAccessFile. Writes seek and write under a lock, uploads use transferTo from
+ * the file channel.
+ *
+ */
+public class RafStorage implements Storage {
+
+	private RandomAccessFile file;
+
+	public RafStorage(String filename) throws IOException {
+		this.file = new RandomAccessFile(filename, "rw");
+	}
+
+	public synchronized void write(long position, ByteBuffer data) throws IOException {
+		if (data.hasArray()) {
+			file.seek(position);
+			file.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			return;
+		}
+		// off-heap piece buffers go through the channel without a copy
+		while (data.hasRemaining()) {
+			position += file.getChannel().write(data, position);
+		}
+	}
+
+	public void read(long position, ByteBuffer dst) throws IOException {
+		while (dst.hasRemaining()) {
+			int n = file.getChannel().read(dst, position);
+			if (n < 0) throw new IOException("end of file at " + position);
+			position += n;
+		}
+	}
+
+	public ByteBuffer slice(long position, int length) {
+		return null;
+	}
+
+	public void flush() throws IOException {
+		file.getChannel().force(false);
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	public boolean isOpen() {
+		return file.getChannel().isOpen();
+	}
+}
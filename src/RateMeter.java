@@ -0,0 +1,100 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Byte counter with a transfer rate over a sliding window of one second slots. The total is a striped
+ * 64 bit LongAdder so every connection thread can count without contending. Each slot holds its
+ * second and its byte count in one long, so claiming a slot for a new second and counting into it
+ * is a single compare-and-set. A meter can feed a parent, so per-peer meters add up
+ * to the session totals.
+ *
+ */
+public class RateMeter {
+
+	/**
+	 * Seconds of history rates are averaged over, -Drubt.rate.window
+	 */
+	public static final int window = Integer.getInteger("rubt.rate.window", 20);
+
+	private static final long START = System.nanoTime();
+
+	private RateMeter parent;
+	private LongAdder total = new LongAdder();
+	private long created;
+
+	// bytes of a second in the low 32 bits, the second + 1 above them, 0 for a slot never used
+	private static final long BYTES = 0xFFFFFFFFL;
+
+	// one slot per second of the window plus a spare being refilled
+	private AtomicLongArray slots = new AtomicLongArray(window + 1);
+
+	public RateMeter() {
+		this(null);
+	}
+
+	/**
+	 * @param parent meter that also counts everything added here, or null
+	 */
+	public RateMeter(RateMeter parent) {
+		this.parent = parent;
+		this.created = now();
+	}
+
+	/**
+	 * Count bytes transferred now
+	 * @param count
+	 */
+	public void add(long count) {
+		total.add(count);
+		long second = now() / 1000;
+		int slot = (int) (second % slots.length());
+		while (true) {
+			long current = slots.get(slot);
+			long slot_second = (current >>> 32) - 1;
+			long next;
+			if (slot_second == second) {
+				next = current + Math.min(count, BYTES - (current & BYTES));
+			} else if (slot_second < second) {
+				// the slot still holds a second that left the window, start it over
+				next = ((second + 1) << 32) | Math.min(count, BYTES);
+			} else {
+				// this thread stalled past a whole window, its second is gone
+				break;
+			}
+			if (slots.compareAndSet(slot, current, next)) break;
+		}
+		if (parent != null) parent.add(count);
+	}
+
+	/**
+	 * @return bytes counted since the meter was created
+	 */
+	public long getTotal() {
+		return total.sum();
+	}
+
+	/**
+	 * @return bytes per second over the last window seconds, or since creation if that is shorter
+	 */
+	public double getRate() {
+		long now = now();
+		long second = now / 1000;
+		long sum = 0;
+		for (int i = 0; i < slots.length(); i++) {
+			long current = slots.get(i);
+			long s = (current >>> 32) - 1;
+			if (current != 0 && s > second - window && s <= second) sum += current & BYTES;
+		}
+		// full seconds before this one plus the part of this second gone by
+		double elapsed = Math.min(window - 1 + (now % 1000) / 1000.0, (now - created) / 1000.0);
+		return sum / Math.max(elapsed, 1.0);
+	}
+
+	/**
+	 * @return milliseconds since the class was loaded, never negative
+	 */
+	private static long now() {
+		return (System.nanoTime() - START) / 1000000;
+	}
+}
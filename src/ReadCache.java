@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Least recently used cache of whole pieces for uploads. The first REQUEST for a block loads its
+ * piece, and later blocks of it, for any peer, are served from memory. Peers that walk through the
+ * file in order get the next pieces loaded ahead of their requests.
+ *
+ */
+public class ReadCache {
+
+	/**
+	 * Cache size in MiB, -Drubt.readcache. 0 turns the cache off.
+	 */
+	public static final int max_size = Integer.getInteger("rubt.readcache", 32) * 1024 * 1024;
+	/**
+	 * Pieces loaded ahead of a sequential requester, -Drubt.readcache.ahead
+	 */
+	public static final int read_ahead = Integer.getInteger("rubt.readcache.ahead", 2);
+
+	private OutFile outfile;
+	private LinkedHashMap<Integer, byte[]> pieces = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true);
+	private long size;
+
+	private ExecutorService loader;
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong bytes_saved = new AtomicLong();
+	private AtomicLong bytes_loaded = new AtomicLong();
+	private AtomicLong prefetched = new AtomicLong();
+
+	/**
+	 * @param outfile where pieces are read from
+	 */
+	public ReadCache(OutFile outfile) {
+		this.outfile = outfile;
+		this.loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "ReadAhead");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @param index
+	 * @param length bytes of the piece about to be sent
+	 * @return data of piece index, loaded from storage if it is not cached
+	 * @throws IOException
+	 */
+	public byte[] get(int index, int length) throws IOException {
+		byte[] data;
+		synchronized (this) {
+			data = pieces.get(index);
+		}
+		if (data != null) {
+			hits.incrementAndGet();
+			bytes_saved.addAndGet(length);
+			return data;
+		}
+		misses.incrementAndGet();
+		return load(index);
+	}
+
+	/**
+	 * Load the pieces after index in the background
+	 * @param index piece a peer just moved on to
+	 */
+	public void readAhead(final int index) {
+		for (int i = index + 1; i <= index + read_ahead && i < outfile.getNumPieces(); i++) {
+			final int next = i;
+			synchronized (this) {
+				if (pieces.containsKey(next)) continue;
+			}
+			if (!outfile.isComplete(next)) continue;
+			loader.execute(new Runnable() {
+				public void run() {
+					try {
+						synchronized (ReadCache.this) {
+							if (pieces.containsKey(next)) return;
+						}
+						load(next);
+						prefetched.incrementAndGet();
+					} catch (IOException e) {
+						System.err.println("IOException reading ahead piece " + next + " " + e.getMessage());
+					}
+				}
+			});
+		}
+	}
+
+	private byte[] load(int index) throws IOException {
+		byte[] data = outfile.readPiece(index);
+		bytes_loaded.addAndGet(data.length);
+		synchronized (this) {
+			byte[] old = pieces.put(index, data);
+			if (old != null) size -= old.length;
+			size += data.length;
+			Iterator<Map.Entry<Integer, byte[]>> eldest = pieces.entrySet().iterator();
+			while (size > max_size && eldest.hasNext()) {
+				Map.Entry<Integer, byte[]> entry = eldest.next();
+				if (entry.getKey() == index) continue;
+				size -= entry.getValue().length;
+				eldest.remove();
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * @return fraction of block requests served from memory
+	 */
+	public double getHitRate() {
+		long total = hits.get() + misses.get();
+		return total == 0 ? 0 : (double) hits.get() / total;
+	}
+
+	public String stats() {
+		return String.format("read cache hits: %d, misses: %d (%.1f%%), saved: %d KiB, loaded: %d KiB, read ahead: %d pieces, cached: %d KiB",
+				hits.get(), misses.get(), getHitRate() * 100, bytes_saved.get() / 1024, bytes_loaded.get() / 1024, prefetched.get(), cachedBytes() / 1024);
+	}
+
+	private synchronized long cachedBytes() {
+		return size;
+	}
+}
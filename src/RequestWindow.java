@@ -0,0 +1,73 @@
+/**
+ *
+ * Number of block requests to keep outstanding with one peer. Round trip time and delivery rate are
+ * smoothed from REQUEST to PIECE timings and the window is sized to the bandwidth-delay product,
+ * so fast peers on long links keep their pipe full and slow peers hold few blocks.
+ *
+ */
+public class RequestWindow {
+
+	public static final int min_depth = Integer.getInteger("rubt.pipeline.min", 2);
+	public static final int max_depth = Integer.getInteger("rubt.pipeline.max", 128);
+
+	// same smoothing gain TCP uses for its RTT estimate
+	private static final double GAIN = 0.125;
+
+	private double rtt;
+	private double rate;
+	private long last_arrival;
+	private int size;
+
+	/**
+	 * @param initial window used until the first samples arrive
+	 */
+	public RequestWindow(int initial) {
+		this.size = clamp(initial);
+	}
+
+	/**
+	 * Record a block arrival
+	 * @param rtt_nanos time from sending the request to receiving the block
+	 * @param bytes block length
+	 * @param now arrival time from System.nanoTime()
+	 */
+	public synchronized void sample(long rtt_nanos, int bytes, long now) {
+
+		rtt = rtt == 0 ? rtt_nanos : rtt + GAIN * (rtt_nanos - rtt);
+
+		if (last_arrival != 0) {
+			// a gap longer than one round trip means the pipe ran dry, not that the peer is slow
+			long interval = Math.max(1, Math.min(now - last_arrival, (long) rtt));
+			double sample = bytes * 1e9 / interval;
+			rate = rate == 0 ? sample : rate + GAIN * (sample - rate);
+		}
+		last_arrival = now;
+
+		if (rate > 0) {
+			double bdp = rate * rtt / 1e9;
+			size = clamp((int) Math.ceil(bdp / Peer.max_length) + 1);
+		}
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return smoothed round trip time in milliseconds
+	 */
+	public synchronized double getRtt() {
+		return rtt / 1e6;
+	}
+
+	/**
+	 * @return smoothed delivery rate in bytes per second
+	 */
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	private static int clamp(int depth) {
+		return Math.max(min_depth, Math.min(max_depth, depth));
+	}
+}
@@ -0,0 +1,159 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ *
+ * Which peer holds each block of the pieces in progress and since when. Every block slot is claimed,
+ * handed back and marked stored with compare-and-set, so peers reserve blocks without taking a lock
+ * and a reservation can only be released by the peer that owns it. expire() takes back blocks whose
+ * request has gone unanswered too long.
+ *
+ */
+public class ReservationTable {
+
+	/**
+	 * A block reserved by owner at requested_at (System.nanoTime())
+	 */
+	public static class Reservation {
+		public final Peer owner;
+		public final int piece;
+		public final int block;
+		public final long requested_at;
+
+		public Reservation(Peer owner, int piece, int block, long requested_at) {
+			this.owner = owner;
+			this.piece = piece;
+			this.block = block;
+			this.requested_at = requested_at;
+		}
+	}
+
+	private static final Reservation STORED = new Reservation(null, -1, -1, 0);
+
+	private static class Slots {
+		private int piece;
+		private long started;
+		private AtomicReferenceArray<Reservation> blocks;
+
+		public Slots(int piece, int num_blocks, long started) {
+			this.piece = piece;
+			this.blocks = new AtomicReferenceArray<Reservation>(num_blocks);
+			this.started = started;
+		}
+	}
+
+	// pieces in the order they were started, so the oldest piece is filled first
+	private ConcurrentSkipListMap<Long, Slots> by_start = new ConcurrentSkipListMap<Long, Slots>();
+	private ConcurrentHashMap<Integer, Slots> by_piece = new ConcurrentHashMap<Integer, Slots>();
+	private AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * @param piece started piece
+	 * @param num_blocks
+	 */
+	public void add(int piece, int num_blocks) {
+		Slots slots = new Slots(piece, num_blocks, sequence.getAndIncrement());
+		if (by_piece.putIfAbsent(piece, slots) == null) by_start.put(slots.started, slots);
+	}
+
+	/**
+	 * @param piece piece that completed or was dropped
+	 */
+	public void remove(int piece) {
+		Slots slots = by_piece.remove(piece);
+		if (slots != null) by_start.remove(slots.started);
+	}
+
+	/**
+	 * Reserves a free block of the oldest started piece that peer_have allows
+	 * @param peer_have
+	 * @param owner
+	 * @return the reservation, or null if no started piece has a free block for this peer
+	 */
+	public Reservation reserve(Bitfield peer_have, Peer owner) {
+		for (Slots slots : by_start.values()) {
+			if (!peer_have.get(slots.piece)) continue;
+			Reservation reservation = reserve(slots, owner);
+			if (reservation != null) return reservation;
+		}
+		return null;
+	}
+
+	/**
+	 * @param piece
+	 * @param owner
+	 * @return reservation of a free block of piece, or null if there is none
+	 */
+	public Reservation reserve(int piece, Peer owner) {
+		Slots slots = by_piece.get(piece);
+		return slots == null ? null : reserve(slots, owner);
+	}
+
+	private Reservation reserve(Slots slots, Peer owner) {
+		for (int i = 0; i < slots.blocks.length(); i++) {
+			if (slots.blocks.get(i) != null) continue;
+			Reservation reservation = new Reservation(owner, slots.piece, i, System.nanoTime());
+			if (slots.blocks.compareAndSet(i, null, reservation)) return reservation;
+		}
+		return null;
+	}
+
+	/**
+	 * Hands back a block owner reserved and did not deliver
+	 * @param piece
+	 * @param block
+	 * @param owner
+	 * @return true if owner held the block
+	 */
+	public boolean release(int piece, int block, Peer owner) {
+		Slots slots = by_piece.get(piece);
+		if (slots == null) return false;
+		Reservation current = slots.blocks.get(block);
+		return current != null && current != STORED && current.owner == owner && slots.blocks.compareAndSet(block, current, null);
+	}
+
+	/**
+	 * Marks a block stored, whoever it was reserved by
+	 * @param piece
+	 * @param block
+	 */
+	public void stored(int piece, int block) {
+		Slots slots = by_piece.get(piece);
+		if (slots != null) slots.blocks.set(block, STORED);
+	}
+
+	/**
+	 * @return true if no started piece has a free block left
+	 */
+	public boolean allReserved() {
+		for (Slots slots : by_start.values()) {
+			for (int i = 0; i < slots.blocks.length(); i++) {
+				if (slots.blocks.get(i) == null) return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Frees every block whose request is older than timeout
+	 * @param timeout_nanos
+	 * @return the expired reservations
+	 */
+	public List<Reservation> expire(long timeout_nanos) {
+		List<Reservation> expired = new ArrayList<Reservation>();
+		long now = System.nanoTime();
+		for (Slots slots : by_start.values()) {
+			AtomicReferenceArray<Reservation> blocks = slots.blocks;
+			for (int i = 0; i < blocks.length(); i++) {
+				Reservation current = blocks.get(i);
+				if (current == null || current == STORED || now - current.requested_at < timeout_nanos) continue;
+				if (blocks.compareAndSet(i, current, null)) expired.add(current);
+			}
+		}
+		return expired;
+	}
+}
@@ -0,0 +1,83 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ *
+ * Fast-resume sidecar kept next to the output file. Records which pieces are complete along with the
+ * info hash and the size and modification time the output file had when it was saved. On startup the
+ * pieces are trusted without hashing as long as the output file still matches, otherwise the file is
+ * rechecked. Written to a temporary file and renamed so a crash never leaves a half written state.
+ *
+ */
+public class ResumeFile {
+
+	private static final int MAGIC = 0x52554254;
+	private static final int VERSION = 1;
+
+	private File file;
+	private File data_file;
+	private byte[] info_hash;
+
+	/**
+	 * @param data_file output file the state describes
+	 * @param info_hash
+	 */
+	public ResumeFile(String data_file, byte[] info_hash) {
+		this.data_file = new File(data_file);
+		this.file = new File(data_file + ".resume");
+		this.info_hash = info_hash;
+	}
+
+	/**
+	 * Saves completed pieces. Call only after those pieces are flushed to the output file.
+	 * @param completed
+	 * @throws IOException
+	 */
+	public synchronized void save(Bitfield completed) throws IOException {
+
+		File tmp = new File(file.getPath() + ".tmp");
+		byte[] bitfield = completed.toBytes();
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.write(info_hash);
+			out.writeLong(data_file.length());
+			out.writeLong(data_file.lastModified());
+			out.writeInt(completed.size());
+			out.write(bitfield);
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) throw new IOException("could not replace " + file);
+		}
+	}
+
+	/**
+	 * @param num_pieces
+	 * @return completed pieces, or null if there is no saved state or it does not match the output file
+	 */
+	public synchronized Bitfield load(int num_pieces) {
+
+		if (!file.exists() || !data_file.exists()) return null;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+			byte[] hash = new byte[info_hash.length];
+			in.readFully(hash);
+			if (!Arrays.equals(hash, info_hash)) return null;
+			if (in.readLong() != data_file.length()) return null;
+			if (in.readLong() != data_file.lastModified()) return null;
+			if (in.readInt() != num_pieces) return null;
+			byte[] bitfield = new byte[(num_pieces + 7) / 8];
+			in.readFully(bitfield);
+			return Bitfield.fromBytes(bitfield, num_pieces);
+		} catch (IOException e) {
+			System.err.println("IOException reading " + file + " " + e.getMessage());
+			return null;
+		}
+	}
+}
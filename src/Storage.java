@@ -0,0 +1,45 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Where verified pieces are stored and uploads are read from. "raf" seeks and writes a
+ * RandomAccessFile, "mmap" copies into windows of a memory mapped file. Selected with -Drubt.storage.
+ *
+ */
+public interface Storage {
+
+	/**
+	 * Store the bytes of data between position and limit at position in the file
+	 * @param position
+	 * @param data
+	 * @throws IOException
+	 */
+	void write(long position, ByteBuffer data) throws IOException;
+
+	/**
+	 * Fill dst from position in the file
+	 * @param position
+	 * @param dst
+	 * @throws IOException
+	 */
+	void read(long position, ByteBuffer dst) throws IOException;
+
+	/**
+	 * @param position
+	 * @param length
+	 * @return view of the stored bytes for an upload, or null if uploads should go through the file channel
+	 * @throws IOException
+	 */
+	ByteBuffer slice(long position, int length) throws IOException;
+
+	/**
+	 * Force written data to the storage device
+	 * @throws IOException
+	 */
+	void flush() throws IOException;
+
+	void close() throws IOException;
+
+	boolean isOpen();
+}
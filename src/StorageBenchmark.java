@@ -0,0 +1,79 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ *
+ * Compares the storage backends. Writes every piece of a scratch file in random order, then reads
+ * random 16 KiB blocks the way uploads do, and prints MiB/s for each backend.
+ *
+ * Usage: java -cp . StorageBenchmark <scratch-file> [size MiB] [piece KiB]
+ *
+ */
+public class StorageBenchmark {
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 1) {
+			System.out.println("Usage: java -cp . StorageBenchmark <scratch-file> [size MiB] [piece KiB]");
+			System.exit(0);
+		}
+		String filename = args[0];
+		long size = (args.length > 1 ? Long.parseLong(args[1]) : 256) * 1024 * 1024;
+		int piece_length = (args.length > 2 ? Integer.parseInt(args[2]) : 256) * 1024;
+
+		for (String mode : new String[] {"raf", "mmap", "raf", "mmap"}) {
+			new File(filename).delete();
+			Storage storage = mode.equals("mmap") ? new MappedStorage(filename, size) : new RafStorage(filename);
+			run(mode, storage, size, piece_length);
+		}
+		new File(filename).delete();
+	}
+
+	private static void run(String mode, Storage storage, long size, int piece_length) throws IOException {
+
+		Random random = new Random(1);
+		int num_pieces = (int) ((size + piece_length - 1) / piece_length);
+		int[] order = new int[num_pieces];
+		for (int i = 0; i < num_pieces; i++) order[i] = i;
+		for (int i = num_pieces - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = order[i];
+			order[i] = order[j];
+			order[j] = t;
+		}
+		byte[] piece = new byte[piece_length];
+		random.nextBytes(piece);
+
+		long start = System.nanoTime();
+		for (int index : order) {
+			long position = (long) index * piece_length;
+			storage.write(position, ByteBuffer.wrap(piece, 0, (int) Math.min(piece_length, size - position)));
+		}
+		storage.flush();
+		double write_seconds = (System.nanoTime() - start) / 1e9;
+
+		int block = Peer.max_length;
+		int blocks = (int) (size / block);
+		ByteBuffer dst = ByteBuffer.allocate(block);
+		long checksum = 0;
+		start = System.nanoTime();
+		for (int i = 0; i < blocks; i++) {
+			long position = (long) random.nextInt(blocks) * block;
+			ByteBuffer data = storage.slice(position, block);
+			if (data == null) {
+				dst.clear();
+				storage.read(position, dst);
+				data = (ByteBuffer) dst.flip();
+			}
+			checksum += data.get(data.position());
+		}
+		double read_seconds = (System.nanoTime() - start) / 1e9;
+		storage.close();
+
+		double mib = size / 1048576.0;
+		System.out.println(String.format("%-5s write %8.1f MiB/s  read %8.1f MiB/s  (%d)",
+				mode, mib / write_seconds, mib / read_seconds, checksum));
+	}
+}
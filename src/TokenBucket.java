@@ -0,0 +1,74 @@
+/**
+ *
+ * Token bucket refilled at a byte rate that can be changed while it is in use. A transfer may take
+ * the bucket into debt, the next one has to wait until the debt is paid off, so whole messages go
+ * out at once and the long term rate still holds.
+ *
+ */
+public class TokenBucket {
+
+	// tokens kept for a burst after an idle spell, as milliseconds of the rate
+	private static final int BURST_MILLIS = 250;
+
+	private long rate;
+	private double tokens;
+	private long last;
+
+	/**
+	 * @param rate bytes per second, 0 for no limit
+	 */
+	public TokenBucket(long rate) {
+		this.rate = rate;
+		this.last = System.nanoTime();
+		this.tokens = burst();
+	}
+
+	/**
+	 * @return nanoseconds until the bucket is out of debt, 0 if a transfer may start now
+	 */
+	public synchronized long delay() {
+		if (rate <= 0) return 0;
+		refill();
+		return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1e9 / rate);
+	}
+
+	/**
+	 * Take tokens for bytes transferred, possibly going into debt
+	 * @param bytes
+	 */
+	public synchronized void consume(long bytes) {
+		if (rate <= 0) return;
+		refill();
+		tokens -= bytes;
+	}
+
+	/**
+	 * @param rate bytes per second, 0 for no limit
+	 */
+	public synchronized void setRate(long rate) {
+		refill();
+		this.rate = rate;
+		tokens = Math.min(tokens, burst());
+	}
+
+	public synchronized long getRate() {
+		return rate;
+	}
+
+	/**
+	 * @return most tokens the bucket holds after an idle spell, 0 for no limit
+	 */
+	public synchronized long getBurst() {
+		return (long) burst();
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst(), tokens + (now - last) * rate / 1e9);
+		last = now;
+	}
+
+	private double burst() {
+		return rate * BURST_MILLIS / 1000.0;
+	}
+}
@@ -14,9 +14,12 @@ public class Tracker {
 	private String peer_id;
 	private String ip;
 	private int port;
-	private int uploaded;
-	private int downloaded;
+	private long uploaded;
+	private long downloaded;
+	private long left;
 	private TorrentInfo torrent;
+	// port PeerListener and PeerEngine accept connections on
+	private static final int LISTEN_PORT = 6881;
 	
 	URL tracker_url = torrent.announce_url;
 	int tracker_port = tracker_url.getPort();
@@ -31,6 +34,7 @@ public class Tracker {
 		this.peer_id = generatePeerID();
 		this.uploaded = 0;
 		this.downloaded = 0;
+		this.left = torrent.file_length;
 		this.port = tracker_port;
 		this.ip = tracker_ip;
 	}
@@ -38,7 +42,50 @@ public class Tracker {
 	public TorrentInfo getTorrentInfo() {
 		return torrent;
 	}
+
+	public String getPeerId() {
+		return peer_id;
+	}
 	
+	/**
+	 * Set the totals reported with the next announce
+	 * @param uploaded block bytes sent this session
+	 * @param downloaded block bytes received this session
+	 * @param left bytes still missing
+	 */
+	public synchronized void update(long uploaded, long downloaded, long left) {
+		this.uploaded = uploaded;
+		this.downloaded = downloaded;
+		this.left = Math.max(0, left);
+	}
+
+	/**
+	 * Builds the announce URL with the current totals
+	 * @param event started, completed, stopped or null for a regular announce
+	 * @return announce URL
+	 */
+	public synchronized String constructURL(String event) {
+		StringBuilder url = new StringBuilder(tracker_url.toString());
+		url.append(url.indexOf("?") < 0 ? '?' : '&');
+		url.append("info_hash=").append(escape(torrent.info_hash.array()));
+		url.append("&peer_id=").append(peer_id);
+		url.append("&port=").append(LISTEN_PORT);
+		url.append("&uploaded=").append(uploaded);
+		url.append("&downloaded=").append(downloaded);
+		url.append("&left=").append(left);
+		if (event != null) url.append("&event=").append(event);
+		this.URL = url.toString();
+		return this.URL;
+	}
+
+	private static String escape(byte[] bytes) {
+		StringBuilder escaped = new StringBuilder();
+		for (byte b : bytes) {
+			escaped.append(String.format("%%%02X", b & 0xff));
+		}
+		return escaped.toString();
+	}
+
 	public byte[] sendEvent(String event) {
 		
 		HttpURLConnection connection = sendGetRequest(event);
@@ -71,8 +118,7 @@ public class Tracker {
 		
 		try 
 		{
-			tracker_url.openConnection();
-			connected = (HttpURLConnection) tracker_url.openConnection();
+			connected = (HttpURLConnection) new URL(constructURL(event)).openConnection();
 			connected.setRequestMethod("GET");
 			
 			return connected;
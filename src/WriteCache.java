@@ -0,0 +1,322 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * Write-back cache in front of a Storage. Verified pieces are copied into memory and a disk writer
+ * thread flushes them in file offset order, joining adjacent pieces into one larger write. Writers
+ * block once the dirty bytes reach the limit. Reads and upload slices see cached pieces before they
+ * reach the disk.
+ *
+ */
+public class WriteCache implements Storage {
+
+	/**
+	 * Max dirty MiB before writers block, -Drubt.cache.dirty. 0 turns the cache off.
+	 */
+	public static final int max_dirty = Integer.getInteger("rubt.cache.dirty", 64) * 1024 * 1024;
+	/**
+	 * Dirty MiB that start a flush without waiting, -Drubt.cache.flush
+	 */
+	public static final int flush_bytes = Integer.getInteger("rubt.cache.flush", 4) * 1024 * 1024;
+	/**
+	 * Milliseconds dirty data may wait below flush_bytes, -Drubt.cache.delay
+	 */
+	public static final int flush_delay = Integer.getInteger("rubt.cache.delay", 1000);
+	/**
+	 * "never" leaves syncing to the OS, "flush" forces the file after every flush pass, -Drubt.cache.fsync
+	 */
+	public static final String fsync = System.getProperty("rubt.cache.fsync", "never");
+
+	// longest run of adjacent pieces joined into one write
+	private static final int MAX_RUN = 4 * 1024 * 1024;
+
+	private Storage backing;
+	private Histogram write_latency;
+
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition work = lock.newCondition();
+	private Condition space = lock.newCondition();
+
+	private TreeMap<Long, byte[]> dirty = new TreeMap<Long, byte[]>();
+	private long dirty_bytes;
+	private int flush_waiters;
+	private boolean closed;
+	// last flush pass could not write everything
+	private boolean failing;
+	private Thread writer;
+
+	private volatile long runs;
+	private volatile long pieces_written;
+	private volatile long bytes_written;
+	private volatile long syncs;
+
+	/**
+	 * @param backing storage the cache writes to
+	 * @param write_latency records how long each write to backing takes
+	 */
+	public WriteCache(Storage backing, Histogram write_latency) {
+		this.backing = backing;
+		this.write_latency = write_latency;
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				flushLoop();
+			}
+		}, "DiskWriter");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	public void write(long position, ByteBuffer data) throws IOException {
+
+		int length = data.remaining();
+		byte[] copy = new byte[length];
+		data.duplicate().get(copy);
+
+		lock.lock();
+		try {
+			if (closed) throw new IOException("cache closed");
+			while (dirty_bytes > 0 && dirty_bytes + length > max_dirty) {
+				work.signal();
+				space.awaitUninterruptibly();
+			}
+			byte[] old = dirty.put(position, copy);
+			if (old != null) dirty_bytes -= old.length;
+			dirty_bytes += length;
+			if (dirty_bytes >= flush_bytes) work.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void read(long position, ByteBuffer dst) throws IOException {
+
+		int length = dst.remaining();
+		lock.lock();
+		try {
+			byte[] cached = covering(position, length);
+			if (cached != null) {
+				dst.put(cached, (int) (position - dirty.floorKey(position)), length);
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		int start = dst.position();
+		backing.read(position, dst);
+
+		// lay anything cached meanwhile over what came from the disk
+		lock.lock();
+		try {
+			Map.Entry<Long, byte[]> first = dirty.floorEntry(position);
+			long from = first != null ? first.getKey() : position;
+			for (Map.Entry<Long, byte[]> entry : dirty.subMap(from, true, position + length, false).entrySet()) {
+				long lo = Math.max(position, entry.getKey());
+				long hi = Math.min(position + length, entry.getKey() + entry.getValue().length);
+				for (long p = lo; p < hi; p++) {
+					dst.put(start + (int) (p - position), entry.getValue()[(int) (p - entry.getKey())]);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public ByteBuffer slice(long position, int length) throws IOException {
+		lock.lock();
+		try {
+			byte[] cached = covering(position, length);
+			// cached arrays are never modified, so the view stays valid after the piece is flushed
+			if (cached != null) return ByteBuffer.wrap(cached, (int) (position - dirty.floorKey(position)), length).slice();
+		} finally {
+			lock.unlock();
+		}
+		return backing.slice(position, length);
+	}
+
+	/**
+	 * Writes out everything dirty, then forces the backing storage
+	 */
+	public void flush() throws IOException {
+		lock.lock();
+		try {
+			flush_waiters++;
+			failing = false;
+			while (!dirty.isEmpty() && !failing && writer.isAlive()) {
+				work.signal();
+				space.awaitUninterruptibly();
+			}
+			flush_waiters--;
+			if (!dirty.isEmpty()) throw new IOException("could not flush " + dirty_bytes + " cached bytes");
+		} finally {
+			lock.unlock();
+		}
+		backing.flush();
+	}
+
+	public void close() throws IOException {
+		flush();
+		lock.lock();
+		try {
+			closed = true;
+			work.signal();
+		} finally {
+			lock.unlock();
+		}
+		backing.close();
+	}
+
+	public boolean isOpen() {
+		return backing.isOpen();
+	}
+
+	/**
+	 * @return dirty bytes not yet written
+	 */
+	public long getDirtyBytes() {
+		lock.lock();
+		try {
+			return dirty_bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public String stats() {
+		lock.lock();
+		try {
+			return String.format("write cache dirty: %d KiB, writes: %d, pieces: %d, written: %d KiB, avg write: %d KiB, syncs: %d",
+					dirty_bytes / 1024, runs, pieces_written, bytes_written / 1024, runs == 0 ? 0 : bytes_written / runs / 1024, syncs);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return cached piece holding all of [position, position + length), or null
+	 */
+	private byte[] covering(long position, int length) {
+		Map.Entry<Long, byte[]> entry = dirty.floorEntry(position);
+		if (entry == null || entry.getKey() + entry.getValue().length < position + length) return null;
+		return entry.getValue();
+	}
+
+	private void flushLoop() {
+
+		while (true) {
+			List<Map.Entry<Long, byte[]>> batch;
+			lock.lock();
+			try {
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flush_delay);
+				// after a failed write only retry once the delay is up
+				while (!closed && ((flush_waiters == 0 && dirty_bytes < flush_bytes) || failing)) {
+					if (dirty.isEmpty()) {
+						work.awaitUninterruptibly();
+						deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flush_delay);
+						continue;
+					}
+					long wait = deadline - System.nanoTime();
+					if (wait <= 0) break;
+					try {
+						work.awaitNanos(wait);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+				if (dirty.isEmpty()) {
+					if (closed) return;
+					space.signalAll();
+					continue;
+				}
+				// snapshot in offset order, entries stay readable until written
+				batch = new ArrayList<Map.Entry<Long, byte[]>>(dirty.size());
+				for (Map.Entry<Long, byte[]> entry : dirty.entrySet()) {
+					batch.add(new AbstractMap.SimpleImmutableEntry<Long, byte[]>(entry));
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			List<Map.Entry<Long, byte[]>> done = writeRuns(batch);
+
+			lock.lock();
+			try {
+				failing = done.size() < batch.size();
+				for (Map.Entry<Long, byte[]> entry : done) {
+					// a piece stored again while it was being written stays dirty
+					if (dirty.get(entry.getKey()) == entry.getValue()) {
+						dirty.remove(entry.getKey());
+						dirty_bytes -= entry.getValue().length;
+					}
+				}
+				space.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @param batch dirty pieces in offset order
+	 * @return the pieces that made it to the backing storage
+	 */
+	private List<Map.Entry<Long, byte[]>> writeRuns(List<Map.Entry<Long, byte[]>> batch) {
+
+		List<Map.Entry<Long, byte[]>> done = new ArrayList<Map.Entry<Long, byte[]>>(batch.size());
+		int i = 0;
+		while (i < batch.size()) {
+			// join pieces that end where the next begins
+			int j = i + 1;
+			long end = batch.get(i).getKey() + batch.get(i).getValue().length;
+			int length = batch.get(i).getValue().length;
+			while (j < batch.size() && batch.get(j).getKey() == end && length + batch.get(j).getValue().length <= MAX_RUN) {
+				end += batch.get(j).getValue().length;
+				length += batch.get(j).getValue().length;
+				j++;
+			}
+
+			long position = batch.get(i).getKey();
+			byte[] run = batch.get(i).getValue();
+			if (j - i > 1) {
+				run = new byte[length];
+				int offset = 0;
+				for (int k = i; k < j; k++) {
+					byte[] piece = batch.get(k).getValue();
+					System.arraycopy(piece, 0, run, offset, piece.length);
+					offset += piece.length;
+				}
+			}
+			try {
+				long started = System.nanoTime();
+				backing.write(position, ByteBuffer.wrap(run, 0, length));
+				write_latency.observe(System.nanoTime() - started);
+				done.addAll(batch.subList(i, j));
+				runs++;
+				pieces_written += j - i;
+				bytes_written += length;
+			} catch (IOException e) {
+				System.err.println("IOException flushing " + length + " bytes at " + position + " " + e.getMessage());
+			}
+			i = j;
+		}
+
+		if (fsync.equals("flush") && !done.isEmpty()) {
+			try {
+				backing.flush();
+				syncs++;
+			} catch (IOException e) {
+				System.err.println("IOException syncing " + e.getMessage());
+			}
+		}
+		return done;
+	}
+}